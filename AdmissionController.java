@@ -0,0 +1,143 @@
+/**
+ * <p>
+ * The AdmissionController class decides what the {@link MessgrServer MessgrServer} lets in. Connections are capped
+ * globally and per source IP before a client thread is started for them, and every object read from a client is
+ * checked against {@link TokenBucket token buckets} for the session's messages and bytes. A chat message that is let
+ * through and turns out to be from a logged in user to a room they may post in is then charged to that room as well,
+ * so only rooms in the {@link RoomDirectory RoomDirectory} ever get a bucket. A check that fails returns how long the client should wait, which the server passes back as a
+ * throttle signal rather than dropping the message silently.
+ * </p>
+ *
+ * <p>
+ * Limits are read from the configuration: <i>admission.max_connections</i>, <i>admission.max_per_ip</i>,
+ * <i>session.messages_per_second</i>, <i>session.message_burst</i>, <i>session.bytes_per_second</i>,
+ * <i>session.byte_burst</i>, <i>room.messages_per_second</i> and <i>room.message_burst</i>.
+ * </p>
+ *
+ * @author Adrian Sanchez
+ */
+
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+class AdmissionController {
+  private final int maxConnections, maxPerIp;
+  private final double sessionRate, sessionBytesRate, roomRate;
+  private final long sessionBurst, sessionBytesBurst, roomBurst;
+
+  private final AtomicInteger connections = new AtomicInteger();
+  private final ConcurrentHashMap<String, AtomicInteger> connectionsByIp = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<Integer, TokenBucket> roomLimits = new ConcurrentHashMap<>();
+  private final LongAdder refused = new LongAdder(), throttled = new LongAdder();
+
+  public AdmissionController(Properties prop) {
+    maxConnections = Integer.parseInt(prop.getProperty("admission.max_connections", "10000"));
+    maxPerIp = Integer.parseInt(prop.getProperty("admission.max_per_ip", "20"));
+    sessionRate = Double.parseDouble(prop.getProperty("session.messages_per_second", "5"));
+    sessionBurst = Long.parseLong(prop.getProperty("session.message_burst", "20"));
+    sessionBytesRate = Double.parseDouble(prop.getProperty("session.bytes_per_second", "32768"));
+    sessionBytesBurst = Long.parseLong(prop.getProperty("session.byte_burst", "262144"));
+    roomRate = Double.parseDouble(prop.getProperty("room.messages_per_second", "100"));
+    roomBurst = Long.parseLong(prop.getProperty("room.message_burst", "200"));
+  }
+
+  /**
+   * Counts a new connection from <i>ip</i> if neither cap has been reached. Every admitted connection must be
+   * {@link #release(String) released} when it closes.
+   */
+  public boolean admit(String ip) {
+    AtomicInteger fromIp = connectionsByIp.computeIfAbsent(ip, k -> new AtomicInteger());
+
+    if(connections.incrementAndGet() > maxConnections | fromIp.incrementAndGet() > maxPerIp) {
+      release(ip);
+      refused.increment();
+      return false;
+    }
+
+    return true;
+  }
+
+  public void release(String ip) {
+    connections.decrementAndGet();
+    connectionsByIp.computeIfPresent(ip, (k, n) -> n.decrementAndGet() <= 0 ? null : n);
+  }
+
+  public Session newSession() {
+    return new Session();
+  }
+
+  /**
+   * Charges a chat message of <i>bytes</i> bytes to the session. Returns 0 if it is allowed, otherwise the
+   * milliseconds the client should wait before sending again. A message is charged to both buckets or to neither.
+   */
+  public long checkMessage(Session s, long bytes) {
+    long wait = s.messages.tryAcquire(1);
+    if(wait != 0) return throttle(wait);
+
+    wait = s.bytes.tryAcquire(bytes);
+    if(wait != 0) s.messages.refund(1);
+
+    return throttle(wait);
+  }
+
+  /**
+   * Charges a chat message that {@link #checkMessage(Session, long) checkMessage} let through to the room it is posted
+   * to, which the caller has already checked the sender may post in. Returns 0 if it is allowed, otherwise the
+   * milliseconds to wait; a message the room turns away is refunded to the session, so it doesn't use up the session's
+   * budget.
+   */
+  public long checkRoom(Session s, RoomDirectory.Room room, long bytes) {
+    long wait = roomLimits.computeIfAbsent(room.id, r -> new TokenBucket(roomRate, roomBurst)).tryAcquire(1);
+    if(wait != 0) {
+      s.messages.refund(1);
+      s.bytes.refund(bytes);
+    }
+
+    return throttle(wait);
+  }
+
+  /**
+   * Returns true if an object of <i>bytes</i> bytes is larger than a session may ever send at once. Such an object
+   * would be throttled forever, so it is turned away instead.
+   */
+  public boolean isOversize(Session s, long bytes) {
+    return s.bytes.exceedsBurst(bytes);
+  }
+
+  /**
+   * Charges anything other than a chat message, such as a history request, to the session's byte budget only.
+   */
+  public long checkBytes(Session s, long bytes) {
+    return throttle(s.bytes.tryAcquire(bytes));
+  }
+
+  public int getConnections() {
+    return connections.get();
+  }
+
+  public long getRefused() {
+    return refused.sum();
+  }
+
+  public long getThrottled() {
+    return throttled.sum();
+  }
+
+  private long throttle(long waitNanos) {
+    if(waitNanos == 0) return 0;
+
+    throttled.increment();
+    return Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNanos));
+  }
+
+  /**
+   * The limits of a single client connection.
+   */
+  class Session {
+    private final TokenBucket messages = new TokenBucket(sessionRate, sessionBurst);
+    private final TokenBucket bytes = new TokenBucket(sessionBytesRate, sessionBytesBurst);
+  }
+}
@@ -0,0 +1,86 @@
+/**
+ * The AuthRequest class carries a login or signup from the client to the {@link AuthService AuthService} of the
+ * {@link MessgrServer MessgrServer}, or a {@link SessionTokens session token} the client was given earlier and wants to
+ * log back in with. Each request has a random id that the matching {@link AuthResult AuthResult} echoes, so the client
+ * can have several requests outstanding and tell their answers apart.
+ *
+ * @author Adrian Sanchez
+ */
+
+import java.util.concurrent.ThreadLocalRandom;
+
+public class AuthRequest implements java.io.Serializable {
+  public static final long serialVersionUID = 7194402861375L;
+
+  private long requestId;
+  private boolean signup;
+  private String alias, password, firstName, lastName, dob, gender, token;
+
+  private AuthRequest(boolean signup, String alias, String password) {
+    this.requestId = ThreadLocalRandom.current().nextLong();
+    this.signup = signup;
+    this.alias = alias;
+    this.password = password;
+  }
+
+  public static AuthRequest login(String alias, String password) {
+    return new AuthRequest(false, alias, password);
+  }
+
+  public static AuthRequest resume(String token) {
+    AuthRequest req = new AuthRequest(false, null, null);
+    req.token = token;
+
+    return req;
+  }
+
+  public static AuthRequest signup(String alias, String password, String firstName, String lastName, String dob, String gender) {
+    AuthRequest req = new AuthRequest(true, alias, password);
+    req.firstName = firstName;
+    req.lastName = lastName;
+    req.dob = dob;
+    req.gender = gender;
+
+    return req;
+  }
+
+  public long getRequestId() {
+    return this.requestId;
+  }
+
+  public boolean isSignup() {
+    return this.signup;
+  }
+
+  public boolean isResume() {
+    return this.token != null;
+  }
+
+  public String getToken() {
+    return this.token;
+  }
+
+  public String getAlias() {
+    return this.alias;
+  }
+
+  public String getPassword() {
+    return this.password;
+  }
+
+  public String getFirstName() {
+    return this.firstName;
+  }
+
+  public String getLastName() {
+    return this.lastName;
+  }
+
+  public String getDob() {
+    return this.dob;
+  }
+
+  public String getGender() {
+    return this.gender;
+  }
+}
@@ -0,0 +1,58 @@
+/**
+ * The AuthResult class is the server's answer to an {@link AuthRequest AuthRequest}. It echoes the request's id and
+ * either confirms the alias that is now logged in, along with a fresh {@link SessionTokens session token}, or gives
+ * the reason the request failed, worded so the client can show it as it is.
+ *
+ * @author Adrian Sanchez
+ */
+
+public class AuthResult implements java.io.Serializable {
+  public static final long serialVersionUID = 2258917604431L;
+
+  private long requestId;
+  private String alias, reason, token;
+  private boolean accepted;
+
+  private AuthResult(long requestId, String alias, boolean accepted, String reason) {
+    this.requestId = requestId;
+    this.alias = alias;
+    this.accepted = accepted;
+    this.reason = reason;
+  }
+
+  public static AuthResult accepted(AuthRequest req) {
+    return new AuthResult(req.getRequestId(), req.getAlias(), true, null);
+  }
+
+  public static AuthResult accepted(AuthRequest req, String alias) {
+    return new AuthResult(req.getRequestId(), alias, true, null);
+  }
+
+  public static AuthResult rejected(AuthRequest req, String reason) {
+    return new AuthResult(req.getRequestId(), req.getAlias(), false, reason);
+  }
+
+  public long getRequestId() {
+    return this.requestId;
+  }
+
+  public String getAlias() {
+    return this.alias;
+  }
+
+  public boolean isAccepted() {
+    return this.accepted;
+  }
+
+  public String getReason() {
+    return this.reason;
+  }
+
+  public String getToken() {
+    return this.token;
+  }
+
+  public void setToken(String token) {
+    this.token = token;
+  }
+}
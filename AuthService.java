@@ -0,0 +1,226 @@
+/**
+ * <p>
+ * The AuthService class logs users in and signs them up on the {@link MessgrServer MessgrServer}. Checking and creating
+ * password hashes with {@link BCrypt BCrypt} is deliberately slow, so the work runs on a dedicated pool with one worker
+ * per core and a bounded queue in front of it. When a login storm fills the queue, further requests are turned away
+ * at once with a "try again" answer instead of piling up and making every login slow.
+ * </p>
+ *
+ * <p>
+ * Requests are answered through a {@link java.util.concurrent.CompletableFuture CompletableFuture}, so the client
+ * thread that received a request never waits for its hash. How long requests wait in the queue and how long their
+ * hashes take are recorded separately, which tells a full queue apart from a cost factor that is too high.
+ * </p>
+ *
+ * <p>
+ * The cost factor is calibrated on startup: a few hashes are timed at a low cost and the highest cost whose estimated
+ * time fits <i>auth.hash_target_ms</i> is chosen, within <i>auth.min_cost</i> and <i>auth.max_cost</i>. BCrypt keeps
+ * the cost in every hash, so a hash made at another cost still verifies; once the cost is settled, a successful login
+ * with a hash of a lower cost replaces it with one at the chosen cost in the background, upgrading accounts as they log
+ * in. A hash is never replaced by a cheaper one. Setting <i>auth.bcrypt_cost</i> skips the calibration and uses that
+ * cost instead.
+ * </p>
+ *
+ * <p>
+ * Passwords reach the server in plain text over the client's object stream, which is not encrypted, and are only hashed
+ * here. The workers share the server's single JDBC connection with the chat pipeline and the room counters, so their
+ * queries are serialized with everyone else's.
+ * </p>
+ *
+ * @author Adrian Sanchez
+ */
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+class AuthService {
+  private final Connection connection;
+  private final ThreadPoolExecutor pool;
+  private final Consumer<String> log;
+  private final long targetNanos;
+  private final int minCost, maxCost;
+  private volatile int cost;
+  private volatile boolean calibrated;
+
+  private final LatencyHistogram queueWait = new LatencyHistogram("auth-queue-wait");
+  private final LatencyHistogram hashTime = new LatencyHistogram("auth-hash");
+  private final LongAdder turnedAway = new LongAdder();
+
+  /**
+   * @param log receives the report of the calibrated cost
+   */
+  public AuthService(Connection connection, Properties prop, Consumer<String> log) {
+    int workers = Runtime.getRuntime().availableProcessors();
+
+    this.connection = connection;
+    this.log = log;
+    this.targetNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(prop.getProperty("auth.hash_target_ms", "250")));
+    this.minCost = Integer.parseInt(prop.getProperty("auth.min_cost", "10"));
+    this.maxCost = Integer.parseInt(prop.getProperty("auth.max_cost", "16"));
+    this.pool = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+      new ArrayBlockingQueue<>(Integer.parseInt(prop.getProperty("auth.queue_limit", "256"))), new ThreadPoolExecutor.AbortPolicy());
+
+    // Hashes made before calibration finishes use the minimum cost and are upgraded on their next login
+    if(prop.getProperty("auth.bcrypt_cost") != null) {
+      this.cost = Integer.parseInt(prop.getProperty("auth.bcrypt_cost"));
+      this.calibrated = true;
+    } else {
+      this.cost = minCost;
+      pool.execute(this::calibrate);
+    }
+  }
+
+  public CompletableFuture<AuthResult> submit(AuthRequest req) {
+    CompletableFuture<AuthResult> result = new CompletableFuture<>();
+    long queued = System.nanoTime();
+
+    try {
+      pool.execute(() -> {
+        queueWait.record(System.nanoTime() - queued);
+
+        try {
+          result.complete(req.isSignup() ? signup(req) : login(req));
+        } catch(SQLException | RuntimeException ex) {
+          // A malformed stored hash makes BCrypt throw; the client still gets an answer
+          System.out.println(ex);
+          result.complete(AuthResult.rejected(req, "Something went wrong. Try again."));
+        }
+      });
+    } catch(RejectedExecutionException ex) {
+      turnedAway.increment();
+      result.complete(AuthResult.rejected(req, "The server is busy. Try again in a moment."));
+    }
+
+    return result;
+  }
+
+  public LatencyHistogram getQueueWait() {
+    return this.queueWait;
+  }
+
+  public LatencyHistogram getHashTime() {
+    return this.hashTime;
+  }
+
+  public long getTurnedAway() {
+    return turnedAway.sum();
+  }
+
+  public int getCost() {
+    return this.cost;
+  }
+
+  /**
+   * Returns the cost factor a BCrypt hash was made with.
+   */
+  public static int costOf(String hash) {
+    int off = hash.charAt(3) == '$' ? 4 : 3;
+    return Integer.parseInt(hash.substring(off, off + 2));
+  }
+
+  /**
+   * Picks the highest cost whose estimated hash time fits the target. Every step of cost doubles the work, so the
+   * fastest of a few hashes at a low cost is enough to estimate all the others; the chosen cost is then timed once
+   * to report what it really takes.
+   */
+  private void calibrate() {
+    final int probeCost = 6;
+    String salt = BCrypt.gensalt(probeCost);
+
+    long best = Long.MAX_VALUE;
+    for(int i = 0; i < 5; i++) {
+      long started = System.nanoTime();
+      BCrypt.hashpw("calibration", salt);
+      best = Math.min(best, System.nanoTime() - started);
+    }
+
+    int chosen = minCost;
+    while(chosen < maxCost && best << (chosen + 1 - probeCost) <= targetNanos) chosen++;
+
+    long started = System.nanoTime();
+    BCrypt.hashpw("calibration", BCrypt.gensalt(chosen));
+    long measured = System.nanoTime() - started;
+
+    cost = chosen;
+    calibrated = true;
+    log.accept("BCrypt cost " + chosen + " chosen for a " + TimeUnit.NANOSECONDS.toMillis(targetNanos) + "ms budget, measured "
+      + TimeUnit.NANOSECONDS.toMillis(measured) + "ms per hash (estimated " + TimeUnit.NANOSECONDS.toMillis(best << (chosen - probeCost)) + "ms)");
+  }
+
+  /**
+   * Replaces a user's hash with one at the current cost. Runs as its own task after the login has been answered, and
+   * is simply skipped if the pool is too busy; the hash is upgraded on a later login instead.
+   */
+  private void rehash(String alias, String password) {
+    int target = cost;
+
+    try {
+      pool.execute(() -> {
+        try {
+          PreparedStatement stmt = connection.prepareStatement("UPDATE Users SET password = ? WHERE alias = ?");
+          stmt.setString(1, BCrypt.hashpw(password, BCrypt.gensalt(target)));
+          stmt.setString(2, alias);
+
+          stmt.executeUpdate();
+        } catch(SQLException ex) {
+          System.out.println(ex);
+        }
+      });
+    } catch(RejectedExecutionException ex) {
+      // Busy; try again on the next login
+    }
+  }
+
+  public void shutdown() {
+    pool.shutdown();
+  }
+
+  private AuthResult login(AuthRequest req) throws SQLException {
+    PreparedStatement stmt = connection.prepareStatement("SELECT password FROM Users WHERE alias = ?");
+    stmt.setString(1, req.getAlias());
+
+    ResultSet existingUser = stmt.executeQuery();
+    if(!existingUser.next()) return AuthResult.rejected(req, "That user does not exist. Check your spelling or sign up.");
+
+    String stored = existingUser.getString("password");
+
+    long started = System.nanoTime();
+    boolean matches = BCrypt.checkpw(req.getPassword(), stored);
+    hashTime.record(System.nanoTime() - started);
+
+    if(matches && calibrated && costOf(stored) < cost) rehash(req.getAlias(), req.getPassword());
+
+    return matches ? AuthResult.accepted(req) : AuthResult.rejected(req, "The username and password don't match. Try again.");
+  }
+
+  private AuthResult signup(AuthRequest req) throws SQLException {
+    PreparedStatement stmt = connection.prepareStatement("SELECT COUNT(*) FROM Users WHERE alias = ?");
+    stmt.setString(1, req.getAlias());
+
+    ResultSet existingUser = stmt.executeQuery();
+    existingUser.next();
+    if(existingUser.getInt(1) > 0) return AuthResult.rejected(req, "* That username already exists. Try another name.");
+
+    long started = System.nanoTime();
+    String hash = BCrypt.hashpw(req.getPassword(), BCrypt.gensalt(cost));
+    hashTime.record(System.nanoTime() - started);
+
+    PreparedStatement query = connection.prepareStatement("INSERT INTO Users (alias, password, first_name, last_name, dob, gender) VALUES (?, ?, ?, ?, ?, ?)");
+    query.setString(1, req.getAlias());
+    query.setString(2, hash);
+    query.setString(3, req.getFirstName() != null ? req.getFirstName() : "");
+    query.setString(4, req.getLastName() != null ? req.getLastName() : "");
+    query.setString(5, req.getDob() != null ? req.getDob() : "");
+    query.setString(6, req.getGender() != null ? req.getGender() : "");
+
+    query.executeUpdate();
+
+    return AuthResult.accepted(req);
+  }
+}
@@ -53,6 +53,10 @@ import java.security.SecureRandom;
  * The amount of work increases exponentially (2**log_rounds), so
  * each increment is twice as much work. The default log_rounds is
  * 10, and the valid range is 4 to 30.
+ * <p>
+ * Each thread hashes with its own engine, whose key schedule and
+ * working buffers are reset in place rather than reallocated, so
+ * hashing allocates nothing in the key schedule loops.
  *
  * @author Damien Miller
  * @version 0.2
@@ -368,8 +372,19 @@ public class BCrypt {
 	};
 
 	// Expanded Blowfish key
-	private int P[];
-	private int S[];
+	private final int P[] = new int[P_orig.length];
+	private final int S[] = new int[S_orig.length];
+
+	// Working buffers, reused by every hash on this engine
+	private final int lr[] = new int[2];
+	private final int koffp[] = new int[1];
+	private final int doffp[] = new int[1];
+	private final int cdata[] = new int[bf_crypt_ciphertext.length];
+
+	// One engine per thread, since the key schedule is mutable state
+	private static final ThreadLocal<BCrypt> engine = ThreadLocal.withInitial(BCrypt::new);
+
+	private static final SecureRandom random = new SecureRandom();
 
 	/**
 	 * Encode a byte array using bcrypt's slightly-modified base64
@@ -378,13 +393,12 @@ public class BCrypt {
 	 *
 	 * @param d	the byte array to encode
 	 * @param len	the number of bytes to encode
-	 * @return	base64-encoded string
+	 * @param rs	the builder to append the encoded string to
 	 * @exception IllegalArgumentException if the length is invalid
 	 */
-	private static String encode_base64(byte d[], int len)
+	private static void encode_base64(byte d[], int len, StringBuilder rs)
 		throws IllegalArgumentException {
 		int off = 0;
-		StringBuffer rs = new StringBuffer();
 		int c1, c2;
 
 		if (len <= 0 || len > d.length)
@@ -411,7 +425,6 @@ public class BCrypt {
 			rs.append(base64_code[c1 & 0x3f]);
 			rs.append(base64_code[c2 & 0x3f]);
 		}
-		return rs.toString();
 	}
 
 	/**
@@ -437,13 +450,13 @@ public class BCrypt {
 	 */
 	private static byte[] decode_base64(String s, int maxolen)
 		throws IllegalArgumentException {
-		StringBuffer rs = new StringBuffer();
 		int off = 0, slen = s.length(), olen = 0;
-		byte ret[];
+		byte ret[], rs[];
 		byte c1, c2, c3, c4, o;
 
 		if (maxolen <= 0)
 			throw new IllegalArgumentException ("Invalid maxolen");
+		rs = new byte[maxolen];
 
 		while (off < slen - 1 && olen < maxolen) {
 			c1 = char64(s.charAt(off++));
@@ -452,7 +465,7 @@ public class BCrypt {
 				break;
 			o = (byte)(c1 << 2);
 			o |= (c2 & 0x30) >> 4;
-			rs.append((char)o);
+			rs[olen] = o;
 			if (++olen >= maxolen || off >= slen)
 				break;
 			c3 = char64(s.charAt(off++));
@@ -460,19 +473,20 @@ public class BCrypt {
 				break;
 			o = (byte)((c2 & 0x0f) << 4);
 			o |= (c3 & 0x3c) >> 2;
-			rs.append((char)o);
+			rs[olen] = o;
 			if (++olen >= maxolen || off >= slen)
 				break;
 			c4 = char64(s.charAt(off++));
 			o = (byte)((c3 & 0x03) << 6);
 			o |= c4;
-			rs.append((char)o);
+			rs[olen] = o;
 			++olen;
 		}
 
+		if (olen == maxolen)
+			return rs;
 		ret = new byte[olen];
-		for (off = 0; off < olen; off++)
-			ret[off] = (byte)rs.charAt(off);
+		System.arraycopy(rs, 0, ret, 0, olen);
 		return ret;
 	}
 
@@ -519,7 +533,8 @@ public class BCrypt {
 
 		for (i = 0; i < 4; i++) {
 			word = (word << 8) | (data[off] & 0xff);
-			off = (off + 1) % data.length;
+			if (++off == data.length)
+				off = 0;
 		}
 
 		offp[0] = off;
@@ -527,11 +542,12 @@ public class BCrypt {
 	}
 
 	/**
-	 * Initialise the Blowfish key schedule
+	 * Initialise the Blowfish key schedule, overwriting whatever
+	 * the previous hash left in it
 	 */
 	private void init_key() {
-		P = (int[])P_orig.clone();
-		S = (int[])S_orig.clone();
+		System.arraycopy(P_orig, 0, P, 0, P_orig.length);
+		System.arraycopy(S_orig, 0, S, 0, S_orig.length);
 	}
 
 	/**
@@ -540,10 +556,12 @@ public class BCrypt {
 	 */
 	private void key(byte key[]) {
 		int i;
-		int koffp[] = { 0 };
-		int lr[] = { 0, 0 };
 		int plen = P.length, slen = S.length;
 
+		koffp[0] = 0;
+		lr[0] = 0;
+		lr[1] = 0;
+
 		for (i = 0; i < plen; i++)
 			P[i] = P[i] ^ streamtoword(key, koffp);
 
@@ -569,10 +587,13 @@ public class BCrypt {
 	 */
 	private void ekskey(byte data[], byte key[]) {
 		int i;
-		int koffp[] = { 0 }, doffp[] = { 0 };
-		int lr[] = { 0, 0 };
 		int plen = P.length, slen = S.length;
 
+		koffp[0] = 0;
+		doffp[0] = 0;
+		lr[0] = 0;
+		lr[1] = 0;
+
 		for (i = 0; i < plen; i++)
 			P[i] = P[i] ^ streamtoword(key, koffp);
 
@@ -650,7 +671,7 @@ public class BCrypt {
 		byte passwordb[], saltb[], hashed[];
 		char minor = (char)0;
 		int rounds, off = 0;
-		StringBuffer rs = new StringBuffer();
+		StringBuilder rs = new StringBuilder(60);
 
 		if (salt.charAt(0) != '$' || salt.charAt(1) != '2')
 			throw new IllegalArgumentException ("Invalid salt version");
@@ -677,9 +698,10 @@ public class BCrypt {
 
 		saltb = decode_base64(real_salt, BCRYPT_SALT_LEN);
 
-		B = new BCrypt();
-		hashed = B.crypt_raw(passwordb, saltb, rounds,
-		    (int[])bf_crypt_ciphertext.clone());
+		B = engine.get();
+		System.arraycopy(bf_crypt_ciphertext, 0, B.cdata, 0,
+		    bf_crypt_ciphertext.length);
+		hashed = B.crypt_raw(passwordb, saltb, rounds, B.cdata);
 
 		rs.append("$2");
 		if (minor >= 'a')
@@ -691,11 +713,10 @@ public class BCrypt {
 			throw new IllegalArgumentException(
 			    "rounds exceeds maximum (30)");
 		}
-		rs.append(Integer.toString(rounds));
+		rs.append(rounds);
 		rs.append("$");
-		rs.append(encode_base64(saltb, saltb.length));
-		rs.append(encode_base64(hashed,
-		    bf_crypt_ciphertext.length * 4 - 1));
+		encode_base64(saltb, saltb.length, rs);
+		encode_base64(hashed, bf_crypt_ciphertext.length * 4 - 1, rs);
 		return rs.toString();
 	}
 
@@ -708,7 +729,7 @@ public class BCrypt {
 	 * @return	an encoded salt value
 	 */
 	public static String gensalt(int log_rounds, SecureRandom random) {
-		StringBuffer rs = new StringBuffer();
+		StringBuilder rs = new StringBuilder(29);
 		byte rnd[] = new byte[BCRYPT_SALT_LEN];
 
 		random.nextBytes(rnd);
@@ -720,9 +741,9 @@ public class BCrypt {
 			throw new IllegalArgumentException(
 			    "log_rounds exceeds maximum (30)");
 		}
-		rs.append(Integer.toString(log_rounds));
+		rs.append(log_rounds);
 		rs.append("$");
-		rs.append(encode_base64(rnd, rnd.length));
+		encode_base64(rnd, rnd.length, rs);
 		return rs.toString();
 	}
 
@@ -734,7 +755,7 @@ public class BCrypt {
 	 * @return	an encoded salt value
 	 */
 	public static String gensalt(int log_rounds) {
-		return gensalt(log_rounds, new SecureRandom());
+		return gensalt(log_rounds, random);
 	}
 
 	/**
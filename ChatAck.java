@@ -0,0 +1,73 @@
+/**
+ * The ChatAck class is the server's compact reply to a {@link ChatEntry ChatEntry} submitted by a client. It echoes the
+ * client's idempotency id so the client can find the message it rendered optimistically, and either carries the id and
+ * sequence number the server assigned to it or the reason it was rejected. A message rejected for being sent too fast
+ * also says how many milliseconds the client should wait before sending it again.
+ *
+ * @author Adrian Sanchez
+ */
+
+public class ChatAck implements java.io.Serializable {
+  public static final long serialVersionUID = 3370815529214L;
+
+  private long clientId, id, sequence;
+  private int chatroom;
+  private boolean accepted;
+  private String reason;
+  private long retryAfter;
+
+  private ChatAck(long clientId, long id, long sequence, int chatroom, boolean accepted, String reason) {
+    this.clientId = clientId;
+    this.id = id;
+    this.sequence = sequence;
+    this.chatroom = chatroom;
+    this.accepted = accepted;
+    this.reason = reason;
+  }
+
+  public static ChatAck accepted(ChatEntry e) {
+    return new ChatAck(e.getClientId(), e.getId(), e.getSequence(), e.getChatRoom(), true, null);
+  }
+
+  public static ChatAck rejected(ChatEntry e, String reason) {
+    return new ChatAck(e.getClientId(), 0, 0, e.getChatRoom(), false, reason);
+  }
+
+  public static ChatAck throttled(ChatEntry e, long retryAfter) {
+    ChatAck ack = new ChatAck(e.getClientId(), 0, 0, e.getChatRoom(), false, "sending too fast");
+    ack.retryAfter = retryAfter;
+
+    return ack;
+  }
+
+  public long getClientId() {
+    return this.clientId;
+  }
+
+  public long getId() {
+    return this.id;
+  }
+
+  public long getSequence() {
+    return this.sequence;
+  }
+
+  public int getChatRoom() {
+    return this.chatroom;
+  }
+
+  public boolean isAccepted() {
+    return this.accepted;
+  }
+
+  public String getReason() {
+    return this.reason;
+  }
+
+  /**
+   * Returns the milliseconds to wait before resending a throttled message, or 0 if it was not throttled.
+   */
+  public long getRetryAfter() {
+    return this.retryAfter;
+  }
+}
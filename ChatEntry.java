@@ -9,6 +9,7 @@
 public class ChatEntry implements java.io.Serializable {
   private String name, message, ip = null;
   private int chatroom;
+  private long id, clientId, sequence, timestamp;
 
   public ChatEntry(String n, String i, int cr) {
     this.name = n;
@@ -54,4 +55,56 @@ public class ChatEntry implements java.io.Serializable {
   public void setChatRoom(int i) {
     this.chatroom = i;
   }
+
+  /**
+   * Returns the time-ordered id the server assigned to this message, or 0 if it hasn't been assigned one yet.
+   */
+  public long getId() {
+    return this.id;
+  }
+
+  public void setId(long i) {
+    this.id = i;
+  }
+
+  /**
+   * Returns the idempotency id the sending client picked for this message, used to match it with its {@link ChatAck ChatAck}.
+   */
+  public long getClientId() {
+    return this.clientId;
+  }
+
+  public void setClientId(long c) {
+    this.clientId = c;
+  }
+
+  public long getSequence() {
+    return this.sequence;
+  }
+
+  public void setSequence(long s) {
+    this.sequence = s;
+  }
+
+  /**
+   * Returns a copy of this entry without the sender's address, suitable for writing to other clients.
+   */
+  public ChatEntry forDelivery() {
+    ChatEntry e = new ChatEntry(this.name, null, this.chatroom);
+    e.setId(this.id);
+    e.setClientId(this.clientId);
+    e.setMessage(this.message);
+    e.setSequence(this.sequence);
+    e.setTimestamp(this.timestamp);
+
+    return e;
+  }
+
+  public long getTimestamp() {
+    return this.timestamp;
+  }
+
+  public void setTimestamp(long t) {
+    this.timestamp = t;
+  }
 }
@@ -0,0 +1,536 @@
+/**
+ * <p>
+ * The ChatLog class is the primary message store for the {@link MessgrServer MessgrServer}. Every chatroom gets its own
+ * partition directory holding a sequence of append-only, memory-mapped segment files. Each record carries its length and a
+ * CRC32 checksum so a torn write at the tail of a segment can be detected and discarded when the log is reopened. Appends
+ * stamp every {@link ChatEntry ChatEntry} with a sequence number that is dense and increasing within its room, which makes
+ * locating a message a matter of picking the right segment and walking forward from the nearest sparse index entry.
+ * </p>
+ *
+ * <p>
+ * Segments are rolled once they reach the configured size. A rolled segment writes a small <i>.idx</i> sidecar with its
+ * sparse index so reopening the log only has to scan the active segment of each room. How often the mapped pages are
+ * forced to disk is controlled by the {@link FsyncPolicy FsyncPolicy} and old segments are deleted by count or by age.
+ * </p>
+ *
+ * @author Adrian Sanchez
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+
+class ChatLog {
+  enum FsyncPolicy { ALWAYS, INTERVAL, NEVER }
+
+  private static final int HEADER_SIZE = 8;
+  private static final int INDEX_INTERVAL = 4096;
+  private static final byte RECORD_VERSION = 3;
+
+  private final File dir;
+  private final int segmentBytes;
+  private final FsyncPolicy fsyncPolicy;
+  private final int retentionSegments;
+  private final long retentionMillis;
+
+  private final ConcurrentHashMap<Integer, Partition> partitions = new ConcurrentHashMap<>();
+  private ScheduledExecutorService maintenance;
+
+  public ChatLog(File dir, int segmentBytes, FsyncPolicy fsyncPolicy, long fsyncIntervalMillis, int retentionSegments, long retentionMillis) throws IOException {
+    this.dir = dir;
+    this.segmentBytes = segmentBytes;
+    this.fsyncPolicy = fsyncPolicy;
+    this.retentionSegments = retentionSegments;
+    this.retentionMillis = retentionMillis;
+
+    if(!dir.isDirectory() && !dir.mkdirs())
+      throw new IOException("Unable to create chat log directory " + dir);
+
+    File[] roomDirs = dir.listFiles((d, name) -> name.startsWith("room-"));
+    if(roomDirs != null) {
+      for(File roomDir : roomDirs) {
+        int room = Integer.parseInt(roomDir.getName().substring(5));
+        partitions.put(room, new Partition(room, roomDir));
+      }
+    }
+
+    maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "chatlog-maintenance");
+      t.setDaemon(true);
+      return t;
+    });
+
+    if(fsyncPolicy == FsyncPolicy.INTERVAL)
+      maintenance.scheduleWithFixedDelay(this::flush, fsyncIntervalMillis, fsyncIntervalMillis, TimeUnit.MILLISECONDS);
+
+    maintenance.scheduleWithFixedDelay(this::applyRetention, 1, 1, TimeUnit.MINUTES);
+  }
+
+  /**
+   * Creates a chat log from the <i>chatlog.*</i> keys of the server configuration, falling back to sensible defaults
+   * for any key that is missing.
+   */
+  public static ChatLog open(Properties prop) throws IOException {
+    File dir = new File(prop.getProperty("chatlog.dir", "chatlog"));
+    int segmentBytes = Integer.parseInt(prop.getProperty("chatlog.segment_bytes", "8388608"));
+    FsyncPolicy policy = FsyncPolicy.valueOf(prop.getProperty("chatlog.fsync", "interval").toUpperCase());
+    long fsyncInterval = Long.parseLong(prop.getProperty("chatlog.fsync_interval_ms", "1000"));
+    int retentionSegments = Integer.parseInt(prop.getProperty("chatlog.retention_segments", "64"));
+    long retentionMillis = TimeUnit.HOURS.toMillis(Long.parseLong(prop.getProperty("chatlog.retention_hours", "720")));
+
+    return new ChatLog(dir, segmentBytes, policy, fsyncInterval, retentionSegments, retentionMillis);
+  }
+
+  /**
+   * Appends the entry to its room's partition. The entry's sequence number and timestamp are set before it is written,
+   * replacing whatever the sender put there, so callers can use them immediately after this method returns.
+   */
+  public long append(ChatEntry entry) throws IOException {
+    Partition p = partitions.computeIfAbsent(entry.getChatRoom(), room -> {
+      try {
+        return new Partition(room, new File(dir, "room-" + room));
+      } catch(IOException ex) {
+        throw new UncheckedIOException(ex);
+      }
+    });
+
+    return p.append(entry);
+  }
+
+  /**
+   * Returns up to <i>max</i> entries of a room in sequence order, starting at <i>fromSeq</i>.
+   */
+  public List<ChatEntry> read(int room, long fromSeq, int max) {
+    Partition p = partitions.get(room);
+    if(p == null || max <= 0) return new ArrayList<>();
+
+    return p.read(fromSeq, max);
+  }
+
+  /**
+   * Returns the (at most) <i>max</i> entries of a room immediately preceding <i>beforeSeq</i>, in sequence order.
+   */
+  public List<ChatEntry> readBefore(int room, long beforeSeq, int max) {
+    Partition p = partitions.get(room);
+    if(p == null) return new ArrayList<>();
+
+    long first = p.firstSequence();
+    long end = Math.min(beforeSeq, p.nextSeq);
+    long start = Math.max(first, end - max);
+    if(start >= end) return new ArrayList<>();
+
+    return p.read(start, (int)(end - start));
+  }
+
+  /**
+   * Returns the sequence number of the newest entry in a room, or 0 if the room has no messages.
+   */
+  public long lastSequence(int room) {
+    Partition p = partitions.get(room);
+    return p == null ? 0 : p.nextSeq - 1;
+  }
+
+  public long firstSequence(int room) {
+    Partition p = partitions.get(room);
+    return p == null ? 1 : p.firstSequence();
+  }
+
+  public Set<Integer> rooms() {
+    return Collections.unmodifiableSet(partitions.keySet());
+  }
+
+  public void flush() {
+    for(Partition p : partitions.values()) {
+      try {
+        p.force();
+      } catch(Exception ex) { System.out.println(ex); }
+    }
+  }
+
+  public void close() {
+    maintenance.shutdown();
+
+    for(Partition p : partitions.values()) {
+      try {
+        p.close();
+      } catch(IOException ex) { System.out.println(ex); }
+    }
+  }
+
+  private void applyRetention() {
+    for(Partition p : partitions.values()) {
+      try {
+        p.applyRetention();
+      } catch(Exception ex) { System.out.println(ex); }
+    }
+  }
+
+  private static byte[] encode(ChatEntry e) {
+    byte[] name = bytes(e.getName()), message = bytes(e.getMessage()), ip = bytes(e.getSourceIP());
+
+    ByteBuffer b = ByteBuffer.allocate(1 + 8 + 8 + 8 + 8 + 4 + 12 + len(name) + len(message) + len(ip));
+    b.put(RECORD_VERSION);
+    b.putLong(e.getSequence());
+    b.putLong(e.getTimestamp());
+    b.putLong(e.getId());
+    b.putLong(e.getClientId());
+    b.putInt(e.getChatRoom());
+    putBytes(b, name);
+    putBytes(b, message);
+    putBytes(b, ip);
+
+    return b.array();
+  }
+
+  private static ChatEntry decode(ByteBuffer b) {
+    byte version = b.get();
+    long seq = b.getLong();
+    long time = b.getLong();
+    long id = version >= 2 ? b.getLong() : 0;
+    long clientId = version >= 3 ? b.getLong() : 0;
+    int room = b.getInt();
+
+    ChatEntry e = new ChatEntry(getString(b), null, room);
+    e.setId(id);
+    e.setClientId(clientId);
+    e.setMessage(getString(b));
+    e.setSourceIP(getString(b));
+    e.setSequence(seq);
+    e.setTimestamp(time);
+
+    return e;
+  }
+
+  private static byte[] bytes(String s) {
+    return s == null ? null : s.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static int len(byte[] b) {
+    return b == null ? 0 : b.length;
+  }
+
+  private static void putBytes(ByteBuffer b, byte[] data) {
+    b.putInt(data == null ? -1 : data.length);
+    if(data != null) b.put(data);
+  }
+
+  private static String getString(ByteBuffer b) {
+    int n = b.getInt();
+    if(n < 0) return null;
+
+    byte[] data = new byte[n];
+    b.get(data);
+    return new String(data, StandardCharsets.UTF_8);
+  }
+
+  private static int checksum(ByteBuffer b, int pos, int len) {
+    CRC32 crc = new CRC32();
+    ByteBuffer slice = b.duplicate();
+    slice.position(pos);
+    slice.limit(pos + len);
+    crc.update(slice);
+
+    return (int)crc.getValue();
+  }
+
+  class Partition {
+    private final int room;
+    private final File roomDir;
+    private volatile Segment[] segments = new Segment[0];
+    private volatile long nextSeq = 1;
+    private boolean dirty;
+
+    Partition(int room, File roomDir) throws IOException {
+      this.room = room;
+      this.roomDir = roomDir;
+
+      if(!roomDir.isDirectory() && !roomDir.mkdirs())
+        throw new IOException("Unable to create partition directory " + roomDir);
+
+      File[] files = roomDir.listFiles((d, name) -> name.endsWith(".log"));
+
+      List<Segment> opened = new ArrayList<>();
+      if(files != null) {
+        Arrays.sort(files);
+        for(int i = 0; i < files.length; i++) {
+          long base = Long.parseLong(files[i].getName().replace(".log", ""));
+          opened.add(new Segment(files[i], base, i == files.length - 1));
+        }
+      }
+
+      if(opened.isEmpty()) opened.add(new Segment(segmentFile(1), 1, true));
+
+      segments = opened.toArray(new Segment[0]);
+      Segment last = segments[segments.length - 1];
+      nextSeq = last.baseSeq + last.count;
+    }
+
+    synchronized long append(ChatEntry entry) throws IOException {
+      entry.setSequence(nextSeq);
+      entry.setTimestamp(System.currentTimeMillis());
+
+      byte[] record = encode(entry);
+      if(record.length + HEADER_SIZE > segmentBytes)
+        throw new IOException("Chat entry of " + record.length + " bytes exceeds the segment size");
+
+      Segment active = segments[segments.length - 1];
+      if(!active.fits(record.length)) active = roll();
+
+      active.append(record, entry.getSequence(), entry.getTimestamp());
+      nextSeq++;
+
+      if(fsyncPolicy == FsyncPolicy.ALWAYS) active.force();
+      else dirty = true;
+
+      return entry.getSequence();
+    }
+
+    List<ChatEntry> read(long fromSeq, int max) {
+      List<ChatEntry> out = new ArrayList<>();
+      Segment[] segs = segments;
+
+      int i = segs.length - 1;
+      while(i > 0 && segs[i].baseSeq > fromSeq) i--;
+
+      for(; i < segs.length && out.size() < max; i++)
+        segs[i].read(fromSeq, max, out);
+
+      return out;
+    }
+
+    long firstSequence() {
+      return segments[0].baseSeq;
+    }
+
+    synchronized void force() throws IOException {
+      if(!dirty) return;
+
+      segments[segments.length - 1].force();
+      dirty = false;
+    }
+
+    synchronized void applyRetention() throws IOException {
+      Segment[] segs = segments;
+      int drop = 0;
+      long cutoff = System.currentTimeMillis() - retentionMillis;
+
+      while(drop < segs.length - 1 && (segs.length - drop > retentionSegments || segs[drop].lastTime < cutoff))
+        drop++;
+
+      if(drop == 0) return;
+
+      segments = Arrays.copyOfRange(segs, drop, segs.length);
+      for(int i = 0; i < drop; i++) segs[i].delete();
+    }
+
+    synchronized void close() throws IOException {
+      Segment active = segments[segments.length - 1];
+      active.force();
+      active.seal();
+    }
+
+    private Segment roll() throws IOException {
+      Segment old = segments[segments.length - 1];
+      old.force();
+      old.seal();
+
+      Segment next = new Segment(segmentFile(nextSeq), nextSeq, true);
+      Segment[] segs = Arrays.copyOf(segments, segments.length + 1);
+      segs[segs.length - 1] = next;
+      segments = segs;
+
+      return next;
+    }
+
+    private File segmentFile(long base) {
+      return new File(roomDir, String.format("%020d.log", base));
+    }
+  }
+
+  class Segment {
+    private final File file;
+    private final long baseSeq;
+    private MappedByteBuffer buf;
+    private volatile int end;
+    private volatile long count;
+    private long firstTime, lastTime;
+
+    // Sparse index: one (seq, position, time) triple roughly every INDEX_INTERVAL bytes
+    private long[] idxSeq = new long[16], idxTime = new long[16];
+    private int[] idxPos = new int[16];
+    private int idxSize;
+    private int lastIndexedPos = -INDEX_INTERVAL;
+
+    Segment(File file, long baseSeq, boolean active) throws IOException {
+      this.file = file;
+      this.baseSeq = baseSeq;
+
+      try(RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+        if(active && raf.length() < segmentBytes) raf.setLength(segmentBytes);
+
+        FileChannel.MapMode mode = active ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY;
+        buf = raf.getChannel().map(mode, 0, raf.length());
+      }
+
+      if(active || !loadIndex()) recover(active);
+    }
+
+    boolean fits(int len) {
+      return end + HEADER_SIZE + len <= buf.capacity();
+    }
+
+    void append(byte[] record, long seq, long time) {
+      int pos = end;
+      ByteBuffer b = buf.duplicate();
+      b.position(pos + HEADER_SIZE);
+      b.put(record);
+      buf.putInt(pos + 4, checksum(buf, pos + HEADER_SIZE, record.length));
+      buf.putInt(pos, record.length);
+
+      track(seq, pos, time);
+      end = pos + HEADER_SIZE + record.length;
+      count++;
+    }
+
+    void read(long fromSeq, int max, List<ChatEntry> out) {
+      int limit = end;
+      int pos = 0;
+      long seq = baseSeq;
+
+      int lo = 0, hi = idxSize - 1;
+      while(lo <= hi) {
+        int mid = (lo + hi) >>> 1;
+        if(idxSeq[mid] <= fromSeq) {
+          pos = idxPos[mid];
+          seq = idxSeq[mid];
+          lo = mid + 1;
+        } else {
+          hi = mid - 1;
+        }
+      }
+
+      ByteBuffer b = buf.duplicate();
+      while(pos < limit && out.size() < max) {
+        int len = b.getInt(pos);
+        if(seq >= fromSeq) {
+          b.limit(pos + HEADER_SIZE + len);
+          b.position(pos + HEADER_SIZE);
+          out.add(decode(b));
+          b.limit(b.capacity());
+        }
+
+        pos += HEADER_SIZE + len;
+        seq++;
+      }
+    }
+
+    void force() {
+      if(!buf.isReadOnly()) buf.force();
+    }
+
+    /**
+     * Writes the sparse index of a full segment next to it so that reopening the log can skip the tail scan.
+     */
+    void seal() throws IOException {
+      try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile())))) {
+        out.writeInt(end);
+        out.writeLong(count);
+        out.writeLong(firstTime);
+        out.writeLong(lastTime);
+        out.writeInt(idxSize);
+        for(int i = 0; i < idxSize; i++) {
+          out.writeLong(idxSeq[i]);
+          out.writeInt(idxPos[i]);
+          out.writeLong(idxTime[i]);
+        }
+      }
+    }
+
+    void delete() {
+      file.delete();
+      indexFile().delete();
+    }
+
+    private boolean loadIndex() {
+      File idx = indexFile();
+      if(!idx.exists()) return false;
+
+      try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(idx)))) {
+        end = in.readInt();
+        count = in.readLong();
+        firstTime = in.readLong();
+        lastTime = in.readLong();
+
+        int n = in.readInt();
+        idxSeq = new long[Math.max(n, 16)];
+        idxPos = new int[Math.max(n, 16)];
+        idxTime = new long[Math.max(n, 16)];
+        for(int i = 0; i < n; i++) {
+          idxSeq[i] = in.readLong();
+          idxPos[i] = in.readInt();
+          idxTime[i] = in.readLong();
+        }
+        idxSize = n;
+
+        return end <= buf.capacity();
+      } catch(IOException ex) {
+        idxSize = 0;
+        return false;
+      }
+    }
+
+    /**
+     * Walks the segment from the start, validating each record's length and checksum. The first invalid record marks
+     * the end of the segment and its header is cleared in an active segment; any bytes left behind it will fail their
+     * checksum if they are ever read again.
+     */
+    private void recover(boolean active) {
+      int pos = 0;
+      long seq = baseSeq;
+      ByteBuffer b = buf.duplicate();
+
+      while(pos + HEADER_SIZE <= buf.capacity()) {
+        int len = b.getInt(pos);
+        if(len <= 0 || pos + HEADER_SIZE + len > buf.capacity()) break;
+        if(b.getInt(pos + 4) != checksum(buf, pos + HEADER_SIZE, len)) break;
+
+        track(seq, pos, b.getLong(pos + HEADER_SIZE + 9));
+        pos += HEADER_SIZE + len;
+        seq++;
+      }
+
+      end = pos;
+      count = seq - baseSeq;
+
+      if(active && pos + HEADER_SIZE <= buf.capacity()) buf.putLong(pos, 0L);
+    }
+
+    private void track(long seq, int pos, long time) {
+      if(firstTime == 0) firstTime = time;
+      lastTime = time;
+
+      if(pos - lastIndexedPos < INDEX_INTERVAL) return;
+
+      if(idxSize == idxSeq.length) {
+        idxSeq = Arrays.copyOf(idxSeq, idxSize * 2);
+        idxPos = Arrays.copyOf(idxPos, idxSize * 2);
+        idxTime = Arrays.copyOf(idxTime, idxSize * 2);
+      }
+
+      idxSeq[idxSize] = seq;
+      idxPos[idxSize] = pos;
+      idxTime[idxSize] = time;
+      idxSize++;
+      lastIndexedPos = pos;
+    }
+
+    private File indexFile() {
+      return new File(file.getPath().replace(".log", ".idx"));
+    }
+  }
+}
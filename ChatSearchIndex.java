@@ -0,0 +1,429 @@
+/**
+ * <p>
+ * The ChatSearchIndex class is an inverted index over the chat lines in the {@link ChatLog ChatLog}, so past messages
+ * can be found by the words in them instead of by scanning the Chats table with LIKE. Messages are split into
+ * lower-cased words of letters and digits, and every word maps to the list of messages that contain it. A search returns
+ * the room and sequence number of the newest messages containing all of its words, limited to the rooms the caller
+ * accepts and to a range of time, and the messages themselves are then read from the chat log.
+ * </p>
+ *
+ * <p>
+ * New messages go into a live segment, which is sealed once it holds <i>search.segment_docs</i> messages. Posting
+ * lists are kept compressed from the start: each is the gaps between the segment-local numbers of its messages, written
+ * as variable-length integers, so a common word costs about a byte per message. Whenever there are more than
+ * <i>search.merge_factor</i> sealed segments, the two adjacent segments that are smallest together are merged on a
+ * background thread. Because segments cover consecutive messages, merging a word's lists is a copy of the bytes with
+ * only the first gap of the second list rewritten. Searches skip segments whose time range can't match.
+ * </p>
+ *
+ * <p>
+ * The index lives in memory and is rebuilt from the chat log when the server starts, in the background, so searches
+ * return partial results until the rebuild has caught up. Messages the chat log has removed by retention are dropped
+ * from the index by {@link #prune(ChatLog) prune}: a sealed segment that holds only such messages is thrown away, and
+ * one where they are at least half is rewritten without them. Until then they are skipped when their entries are read.
+ * </p>
+ *
+ * @author Adrian Sanchez
+ */
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.IntPredicate;
+import java.util.function.IntToLongFunction;
+
+class ChatSearchIndex {
+  private static final int MAX_WORD = 64;
+  private static final int REBUILD_CHUNK = 1000;
+
+  private final int segmentDocs, mergeFactor;
+  private final ExecutorService merger = Executors.newSingleThreadExecutor(r -> {
+    Thread t = new Thread(r, "search-merge");
+    t.setDaemon(true);
+    return t;
+  });
+
+  private Segment live = new Segment();
+  private volatile List<Segment> sealed = Collections.emptyList();
+
+  public ChatSearchIndex(Properties prop) {
+    this.segmentDocs = Integer.parseInt(prop.getProperty("search.segment_docs", "65536"));
+    this.mergeFactor = Math.max(2, Integer.parseInt(prop.getProperty("search.merge_factor", "8")));
+  }
+
+  /**
+   * Indexes the chat log as it is now, on a thread of its own. Must be called before any new message is added, so the
+   * messages it reads and the ones added live never overlap.
+   */
+  public void rebuild(ChatLog log) {
+    Map<Integer, Long> upTo = new HashMap<>();
+    for(int room : log.rooms()) upTo.put(room, log.lastSequence(room));
+
+    Thread t = new Thread(() -> {
+      for(Map.Entry<Integer, Long> room : upTo.entrySet()) {
+        long next = log.firstSequence(room.getKey());
+
+        while(next <= room.getValue()) {
+          List<ChatEntry> chunk = log.read(room.getKey(), next, (int)Math.min(REBUILD_CHUNK, room.getValue() - next + 1));
+          if(chunk.isEmpty()) break;
+
+          for(ChatEntry e : chunk) add(e);
+          next = chunk.get(chunk.size() - 1).getSequence() + 1;
+        }
+      }
+    }, "search-rebuild");
+
+    t.setDaemon(true);
+    t.start();
+  }
+
+  public synchronized void add(ChatEntry e) {
+    live.add(e, tokenize(e.getMessage()));
+
+    if(live.size >= segmentDocs) {
+      List<Segment> next = new ArrayList<>(sealed);
+      next.add(live.seal());
+      sealed = Collections.unmodifiableList(next);
+      live = new Segment();
+
+      if(next.size() > mergeFactor) merger.execute(this::merge);
+    }
+  }
+
+  /**
+   * Returns <i>{room, sequence}</i> of up to <i>limit</i> messages containing every word of the query, newest first.
+   * Only messages in rooms <i>inRoom</i> accepts and stamped between <i>from</i> and <i>to</i> are returned, so rooms
+   * the caller may not see never take up places in the result. <i>inRoom</i> is called with the index locked and must
+   * not block.
+   */
+  public List<long[]> search(String query, IntPredicate inRoom, long from, long to, int limit) {
+    Set<String> words = tokenize(query);
+    List<long[]> results = new ArrayList<>();
+    if(words.isEmpty() || limit <= 0) return results;
+
+    // Holds the newest hits seen so far as {timestamp, room, sequence}, oldest on top
+    PriorityQueue<long[]> newest = new PriorityQueue<>((a, b) -> Long.compare(a[0], b[0]));
+
+    for(Segment s : sealed) s.collect(words, inRoom, from, to, limit, newest);
+    synchronized(this) {
+      live.collect(words, inRoom, from, to, limit, newest);
+    }
+
+    while(!newest.isEmpty()) {
+      long[] hit = newest.poll();
+      results.add(new long[] { hit[1], hit[2] });
+    }
+    Collections.reverse(results);
+
+    return results;
+  }
+
+  /**
+   * Drops the messages that have passed out of the chat log's retention from the sealed segments. Runs on the merge
+   * thread, so it never overlaps a merge.
+   */
+  public void prune(ChatLog log) {
+    merger.execute(() -> dropExpired(log));
+  }
+
+  public void shutdown() {
+    merger.shutdown();
+  }
+
+  static Set<String> tokenize(String text) {
+    Set<String> words = new LinkedHashSet<>();
+    if(text == null) return words;
+
+    int start = -1;
+    for(int i = 0; i <= text.length(); i++) {
+      boolean inWord = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+
+      if(inWord && start < 0) {
+        start = i;
+      } else if(!inWord && start >= 0) {
+        if(i - start <= MAX_WORD) words.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+        start = -1;
+      }
+    }
+
+    return words;
+  }
+
+  // Merges the adjacent pair of sealed segments that is smallest together until no more than mergeFactor are left
+  private void merge() {
+    while(true) {
+      List<Segment> current = sealed;
+      if(current.size() <= mergeFactor) return;
+
+      int pair = 0;
+      for(int i = 1; i < current.size() - 1; i++) {
+        if(current.get(i).size + current.get(i + 1).size < current.get(pair).size + current.get(pair + 1).size) pair = i;
+      }
+
+      Segment merged = Segment.merge(current.get(pair), current.get(pair + 1));
+
+      // Sealing only ever appends, so the pair is still where it was
+      synchronized(this) {
+        List<Segment> next = new ArrayList<>(sealed);
+        next.set(pair, merged);
+        next.remove(pair + 1);
+        sealed = Collections.unmodifiableList(next);
+      }
+    }
+  }
+
+  private void dropExpired(ChatLog log) {
+    List<Segment> current = sealed;
+    List<Segment> kept = new ArrayList<>(current.size());
+    HashMap<Integer, Long> first = new HashMap<>();
+    boolean changed = false;
+
+    for(Segment s : current) {
+      Segment retained = s.retain(room -> first.computeIfAbsent(room, log::firstSequence));
+      changed |= retained != s;
+      if(retained != null) kept.add(retained);
+    }
+    if(!changed) return;
+
+    // Segments sealed since the list was read are kept as they are
+    synchronized(this) {
+      kept.addAll(sealed.subList(current.size(), sealed.size()));
+      sealed = Collections.unmodifiableList(kept);
+    }
+  }
+
+  static class Segment {
+    private HashMap<String, Postings> words = new HashMap<>();
+    private int[] rooms = new int[64];
+    private long[] sequences = new long[64];
+    private long[] times = new long[64];
+    private int size;
+    private long minTime = Long.MAX_VALUE, maxTime = Long.MIN_VALUE;
+
+    void add(ChatEntry e, Set<String> tokens) {
+      if(size == rooms.length) {
+        rooms = Arrays.copyOf(rooms, size * 2);
+        sequences = Arrays.copyOf(sequences, size * 2);
+        times = Arrays.copyOf(times, size * 2);
+      }
+
+      rooms[size] = e.getChatRoom();
+      sequences[size] = e.getSequence();
+      times[size] = e.getTimestamp();
+      minTime = Math.min(minTime, e.getTimestamp());
+      maxTime = Math.max(maxTime, e.getTimestamp());
+
+      for(String w : tokens) words.computeIfAbsent(w, k -> new Postings()).add(size);
+      size++;
+    }
+
+    // Trims every array to its contents; the segment is not changed again after this
+    Segment seal() {
+      rooms = Arrays.copyOf(rooms, size);
+      sequences = Arrays.copyOf(sequences, size);
+      times = Arrays.copyOf(times, size);
+      for(Postings p : words.values()) p.trim();
+
+      return this;
+    }
+
+    static Segment merge(Segment a, Segment b) {
+      Segment m = new Segment();
+      m.size = a.size + b.size;
+      m.rooms = concat(a.rooms, a.size, b.rooms, b.size);
+      m.sequences = concat(a.sequences, a.size, b.sequences, b.size);
+      m.times = concat(a.times, a.size, b.times, b.size);
+      m.minTime = Math.min(a.minTime, b.minTime);
+      m.maxTime = Math.max(a.maxTime, b.maxTime);
+
+      m.words = new HashMap<>(a.words.size() + b.words.size());
+      for(Map.Entry<String, Postings> w : a.words.entrySet()) m.words.put(w.getKey(), w.getValue().copy());
+      for(Map.Entry<String, Postings> w : b.words.entrySet()) {
+        Postings p = m.words.get(w.getKey());
+        if(p == null) m.words.put(w.getKey(), p = new Postings());
+        p.append(w.getValue(), a.size);
+      }
+      for(Postings p : m.words.values()) p.trim();
+
+      return m;
+    }
+
+    // Returns the segment itself if most of its messages are still in the chat log, null if none are, and otherwise a
+    // copy holding only those that are, numbered anew
+    Segment retain(IntToLongFunction firstSequence) {
+      boolean[] keep = new boolean[size];
+      int kept = 0;
+      for(int d = 0; d < size; d++) {
+        keep[d] = sequences[d] >= firstSequence.applyAsLong(rooms[d]);
+        if(keep[d]) kept++;
+      }
+
+      if(kept == 0) return null;
+      if(kept * 2 > size) return this;
+
+      Segment r = new Segment();
+      r.rooms = new int[kept];
+      r.sequences = new long[kept];
+      r.times = new long[kept];
+
+      int[] renumbered = new int[size];
+      for(int d = 0; d < size; d++) {
+        renumbered[d] = keep[d] ? r.size : -1;
+        if(!keep[d]) continue;
+
+        r.rooms[r.size] = rooms[d];
+        r.sequences[r.size] = sequences[d];
+        r.times[r.size] = times[d];
+        r.minTime = Math.min(r.minTime, times[d]);
+        r.maxTime = Math.max(r.maxTime, times[d]);
+        r.size++;
+      }
+
+      for(Map.Entry<String, Postings> w : words.entrySet()) {
+        Postings p = null;
+        for(int d : w.getValue().decode()) {
+          if(renumbered[d] < 0) continue;
+          if(p == null) p = new Postings();
+          p.add(renumbered[d]);
+        }
+
+        if(p != null) {
+          p.trim();
+          r.words.put(w.getKey(), p);
+        }
+      }
+
+      return r;
+    }
+
+    void collect(Set<String> query, IntPredicate inRoom, long from, long to, int limit, PriorityQueue<long[]> newest) {
+      if(size == 0 || maxTime < from || minTime > to) return;
+
+      // Walk the rarest word's list and check the others against it
+      List<Postings> lists = new ArrayList<>();
+      for(String w : query) {
+        Postings p = words.get(w);
+        if(p == null) return;
+        lists.add(p);
+      }
+      lists.sort(Comparator.comparingInt(p -> p.count));
+
+      int[] docs = lists.get(0).decode();
+      for(int i = 1; i < lists.size() && docs.length > 0; i++) docs = intersect(docs, lists.get(i).decode());
+
+      for(int d : docs) {
+        if(times[d] < from || times[d] > to) continue;
+        if(newest.size() == limit && newest.peek()[0] >= times[d]) continue;
+        if(!inRoom.test(rooms[d])) continue;
+
+        newest.add(new long[] { times[d], rooms[d], sequences[d] });
+        if(newest.size() > limit) newest.poll();
+      }
+    }
+
+    private static int[] intersect(int[] a, int[] b) {
+      int[] out = new int[Math.min(a.length, b.length)];
+      int i = 0, j = 0, n = 0;
+
+      while(i < a.length && j < b.length) {
+        if(a[i] < b[j]) i++;
+        else if(a[i] > b[j]) j++;
+        else { out[n++] = a[i]; i++; j++; }
+      }
+
+      return Arrays.copyOf(out, n);
+    }
+
+    private static int[] concat(int[] a, int an, int[] b, int bn) {
+      int[] c = Arrays.copyOf(a, an + bn);
+      System.arraycopy(b, 0, c, an, bn);
+      return c;
+    }
+
+    private static long[] concat(long[] a, int an, long[] b, int bn) {
+      long[] c = Arrays.copyOf(a, an + bn);
+      System.arraycopy(b, 0, c, an, bn);
+      return c;
+    }
+  }
+
+  /**
+   * A list of increasing document numbers, stored as the gaps between them in variable-length integers of seven bits
+   * per byte.
+   */
+  static class Postings {
+    private byte[] bytes = new byte[4];
+    private int length, count, last = -1;
+
+    void add(int doc) {
+      write(doc - last);
+      last = doc;
+      count++;
+    }
+
+    // Adds every document of <i>other</i>, numbered from <i>offset</i>, after the ones already here
+    void append(Postings other, int offset) {
+      if(other.count == 0) return;
+
+      int[] pos = { 0 };
+      int first = read(other.bytes, pos) - 1 + offset;
+
+      add(first);
+      int rest = other.length - pos[0];
+      ensure(rest);
+      System.arraycopy(other.bytes, pos[0], bytes, length, rest);
+      length += rest;
+      count += other.count - 1;
+      last = other.last + offset;
+    }
+
+    int[] decode() {
+      int[] docs = new int[count];
+      int[] pos = { 0 };
+
+      int doc = -1;
+      for(int i = 0; i < count; i++) docs[i] = doc += read(bytes, pos);
+
+      return docs;
+    }
+
+    Postings copy() {
+      Postings p = new Postings();
+      p.bytes = Arrays.copyOf(bytes, length);
+      p.length = length;
+      p.count = count;
+      p.last = last;
+
+      return p;
+    }
+
+    void trim() {
+      if(bytes.length != length) bytes = Arrays.copyOf(bytes, length);
+    }
+
+    private void write(int v) {
+      ensure(5);
+      while((v & ~0x7F) != 0) {
+        bytes[length++] = (byte)((v & 0x7F) | 0x80);
+        v >>>= 7;
+      }
+      bytes[length++] = (byte)v;
+    }
+
+    private void ensure(int extra) {
+      if(length + extra > bytes.length) bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + extra));
+    }
+
+    private static int read(byte[] b, int[] pos) {
+      int v = 0, shift = 0;
+      byte x;
+      do {
+        x = b[pos[0]++];
+        v |= (x & 0x7F) << shift;
+        shift += 7;
+      } while(x < 0);
+
+      return v;
+    }
+  }
+}
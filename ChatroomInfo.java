@@ -6,6 +6,12 @@
  * method, which takes the database field and value as parameters.
  * </p>
  *
+ * <p>
+ * Loading a room reads only its row. Members are read a page at a time with {@link #getUsers(String after, int limit) getUsers}
+ * as lightweight {@link UserRef UserRef}s, in one query per page that joins in their status, so opening a room costs
+ * the same however many members it has and a member's full profile is only loaded when it is shown.
+ * </p>
+ *
  * @author  Adrian Sanchez
  */
 
@@ -13,13 +19,16 @@ import java.sql.*;
 import java.util.Properties;
 import java.io.*;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 class ChatroomInfo implements java.io.Serializable {
+  public static final int MEMBER_PAGE = 100;
+  private static final int MEMBER_BATCH = 500;
+
   private int id, visits, members;
   private String name, moderator, category;
   private Date dateCreated;
-  private ArrayList<User> users = new ArrayList<>();
 
   private transient Connection connection;
 
@@ -37,14 +46,10 @@ class ChatroomInfo implements java.io.Serializable {
     setupDB();
 
     try {
-      connection.setAutoCommit(false);
+      PreparedStatement stmt = connection.prepareStatement("SELECT * FROM ChatRooms WHERE chatroom_id = ?");
+      stmt.setInt(1, id);
 
-      PreparedStatement stmt1 = connection.prepareStatement("SELECT * FROM ChatRooms WHERE chatroom_id = ?");
-      PreparedStatement stmt2 = connection.prepareStatement("SELECT * FROM ChatRoomMembers WHERE chatroom_id = ?");
-      stmt1.setInt(1, id);
-      stmt2.setInt(1, id);
-
-      ResultSet room = stmt1.executeQuery();
+      ResultSet room = stmt.executeQuery();
       if(room.next()) {
         this.id = id;
         this.name = room.getString("name");
@@ -54,16 +59,6 @@ class ChatroomInfo implements java.io.Serializable {
         this.members = room.getInt("members");
         this.dateCreated = room.getDate("created");
       }
-
-      ResultSet members = stmt2.executeQuery();
-      while(members.next()) {
-        User u = new User(members.getString("alias"));
-        users.add(u);
-      }
-
-      connection.commit();
-
-      connection.setAutoCommit(true);
     } catch(SQLException ex) { System.out.println(ex); }
 
   }
@@ -110,44 +105,107 @@ class ChatroomInfo implements java.io.Serializable {
     return this.members;
   }
 
-  public ArrayList<User> getUsers() {
-    return this.users;
+  public List<UserRef> getUsers() {
+    return getUsers(null, MEMBER_PAGE);
   }
 
-  public void setUsers(User[] users) {
-    this.users = new ArrayList<User>(Arrays.asList(users));
+  /**
+   * Returns up to <i>limit</i> members in alphabetical order, starting after the alias <i>after</i>, or from the
+   * first member when it is null. Pass the alias of the last member of a page to get the next one.
+   */
+  public List<UserRef> getUsers(String after, int limit) {
+    List<UserRef> page = new ArrayList<>();
+    if(connection == null) setupDB();
 
     try {
-      PreparedStatement stmt = connection.prepareStatement("INSERT INTO ChatRoomMembers (chatroom_id, alias) VALUES (?, ?)");
-      for(User u : users) {
-        stmt.setInt(1, this.id);
-        stmt.setString(2, u.getAlias());
+      PreparedStatement stmt = connection.prepareStatement(
+        "SELECT m.alias, u.status FROM ChatRoomMembers m LEFT JOIN Users u ON u.alias = m.alias " +
+        "WHERE m.chatroom_id = ? AND m.alias > ? ORDER BY m.alias LIMIT ?");
+      stmt.setInt(1, this.id);
+      stmt.setString(2, after != null ? after : "");
+      stmt.setInt(3, limit);
 
-        stmt.executeUpdate();
-      }
+      ResultSet rslt = stmt.executeQuery();
+      while(rslt.next()) page.add(UserRef.of(rslt.getString("alias"), UserStatus.parse(rslt.getString("status"))));
+    } catch(SQLException ex) { System.out.println(ex); }
 
-      PreparedStatement memCountStmt = connection.prepareStatement("UPDATE ChatRooms SET members = (SELECT COUNT(*) FROM ChatRoomMembers WHERE ChatRoomMembers.chatroom_id = ?)");
-      memCountStmt.setInt(1, this.id);
+    return page;
+  }
 
-      memCountStmt.executeUpdate();
-    } catch(SQLException ex) { System.out.println(ex); }
+  public void setUsers(User[] users) {
+    List<String> aliases = new ArrayList<>();
+    for(User u : users) aliases.add(u.getAlias());
+
+    addMembers(aliases);
   }
 
   public void addUser(User u) {
-    this.users.add(u);
+    addMembers(Collections.singletonList(u.getAlias()));
+  }
+
+  /**
+   * Adds the aliases to the room in one transaction, sending the inserts in batches, and moves the room's member count
+   * by the number of rows actually inserted. Aliases that are already members are skipped rather than failing the batch.
+   */
+  private void addMembers(List<String> aliases) {
+    if(aliases.isEmpty()) return;
+    if(connection == null) setupDB();
 
     try {
-      PreparedStatement stmt = connection.prepareStatement("INSERT INTO ChatRoomMembers (chatroom_id, alias) VALUES (?, ?)");
-      stmt.setInt(1, this.id);
-      stmt.setString(2, u.getAlias());
+      connection.setAutoCommit(false);
 
-      stmt.executeUpdate();
+      PreparedStatement stmt = connection.prepareStatement("INSERT IGNORE INTO ChatRoomMembers (chatroom_id, alias) VALUES (?, ?)");
+      int added = 0, pending = 0;
+      boolean counted = true;
 
-      PreparedStatement memCountStmt = connection.prepareStatement("UPDATE ChatRooms SET members = (SELECT COUNT(*) FROM ChatRoomMembers WHERE ChatRoomMembers.chatroom_id = ?)");
-      memCountStmt.setInt(1, this.id);
+      for(int i = 0; i < aliases.size(); i++) {
+        stmt.setInt(1, this.id);
+        stmt.setString(2, aliases.get(i));
+        stmt.addBatch();
+
+        if(++pending == MEMBER_BATCH || i == aliases.size() - 1) {
+          for(int n : stmt.executeBatch()) {
+            if(n == Statement.SUCCESS_NO_INFO) counted = false;
+            else added += n;
+          }
+          pending = 0;
+        }
+      }
 
-      memCountStmt.executeUpdate();
-    } catch(SQLException ex) { System.out.println(ex); }
+      if(counted) {
+        PreparedStatement memCountStmt = connection.prepareStatement("UPDATE ChatRooms SET members = members + ? WHERE chatroom_id = ?");
+        memCountStmt.setInt(1, added);
+        memCountStmt.setInt(2, this.id);
+        memCountStmt.executeUpdate();
+
+        connection.commit();
+        this.members += added;
+      } else {
+        // A driver that rewrites batches may not say how many rows each insert added, so the room's rows are counted
+        PreparedStatement memCountStmt = connection.prepareStatement("UPDATE ChatRooms SET members = (SELECT COUNT(*) FROM ChatRoomMembers WHERE chatroom_id = ?) WHERE chatroom_id = ?");
+        memCountStmt.setInt(1, this.id);
+        memCountStmt.setInt(2, this.id);
+        memCountStmt.executeUpdate();
+
+        PreparedStatement countStmt = connection.prepareStatement("SELECT members FROM ChatRooms WHERE chatroom_id = ?");
+        countStmt.setInt(1, this.id);
+
+        ResultSet count = countStmt.executeQuery();
+        if(count.next()) this.members = count.getInt("members");
+
+        connection.commit();
+      }
+    } catch(SQLException ex) {
+      System.out.println(ex);
+
+      try {
+        connection.rollback();
+      } catch(SQLException e) { System.out.println(e); }
+    } finally {
+      try {
+        connection.setAutoCommit(true);
+      } catch(SQLException ex) { System.out.println(ex); }
+    }
   }
 
   public Date getDateCreated() {
@@ -0,0 +1,37 @@
+/**
+ * The CountingInputStream class counts the bytes read through it. The {@link MessgrServer MessgrServer} wraps each
+ * client's socket in one, so the size of every object a client sends can be charged against its byte limits in the
+ * {@link AdmissionController AdmissionController}.
+ *
+ * @author Adrian Sanchez
+ */
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+class CountingInputStream extends FilterInputStream {
+  private volatile long count;
+
+  CountingInputStream(InputStream in) {
+    super(in);
+  }
+
+  @Override
+  public int read() throws IOException {
+    int b = super.read();
+    if(b >= 0) count++;
+    return b;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    int n = super.read(b, off, len);
+    if(n > 0) count += n;
+    return n;
+  }
+
+  public long getCount() {
+    return count;
+  }
+}
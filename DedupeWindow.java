@@ -0,0 +1,146 @@
+/**
+ * <p>
+ * The DedupeWindow class remembers which messages were recently accepted so a client that resends a message after a
+ * reconnect gets the original acknowledgement back instead of a second copy in the room. Each submission is identified
+ * by a 64-bit fingerprint of the sender's alias and the client's idempotency id, mapped to the id and sequence number
+ * the message was given.
+ * </p>
+ *
+ * <p>
+ * Fingerprints live in two open-addressing tables of fixed capacity. New entries go into the current table; when it is
+ * half full or has been current for half the window, the older table is cleared and the two swap roles. Lookups check
+ * both tables, so every operation is O(1) and memory never grows past the two tables. An entry is remembered for at
+ * most the whole window, and for at least half of it as long as fewer than half the capacity's worth of submissions
+ * arrive in half a window; under more load than that, a full table rotates early and an entry is only guaranteed to
+ * outlive the next half table of submissions.
+ * </p>
+ *
+ * <p>
+ * The capacity is split between {@value #STRIPES} stripes, each with its own pair of tables and its own lock, and a
+ * fingerprint always goes to the same stripe. Rooms post from different threads, so they mostly take different locks
+ * instead of all waiting on one.
+ * </p>
+ *
+ * @author Adrian Sanchez
+ */
+
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+class DedupeWindow {
+  public static final int STRIPES = 16;
+
+  private final Stripe[] stripes = new Stripe[STRIPES];
+
+  public DedupeWindow(int capacity, long windowMillis) {
+    for(int i = 0; i < STRIPES; i++) stripes[i] = new Stripe(Math.max(1, capacity / STRIPES), windowMillis / 2);
+  }
+
+  public static DedupeWindow open(Properties prop) {
+    int capacity = Integer.parseInt(prop.getProperty("dedupe.capacity", "65536"));
+    long window = TimeUnit.SECONDS.toMillis(Long.parseLong(prop.getProperty("dedupe.window_seconds", "300")));
+
+    return new DedupeWindow(capacity, window);
+  }
+
+  /**
+   * Returns the <i>{id, sequence}</i> a previous submission of this message was given, or null if it hasn't been seen.
+   */
+  public long[] lookup(String alias, long clientId) {
+    long key = fingerprint(alias, clientId);
+    return stripe(key).lookup(key);
+  }
+
+  public void record(String alias, long clientId, long id, long sequence) {
+    long key = fingerprint(alias, clientId);
+    stripe(key).record(key, id, sequence);
+  }
+
+  // The tables probe from the low bits, so the stripe is picked by the high ones
+  private Stripe stripe(long key) {
+    return stripes[(int)(key >>> 60) & (STRIPES - 1)];
+  }
+
+  private static long fingerprint(String alias, long clientId) {
+    long h = (alias == null ? 0 : alias.hashCode()) * 0x9E3779B97F4A7C15L ^ clientId;
+
+    // Finalizer from MurmurHash3 to spread the bits before probing
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+
+    return h == 0 ? 1 : h;
+  }
+
+  static class Stripe {
+    private final long rotateMillis;
+    private final Table[] tables;
+    private int current = 0;
+    private long rotatedAt = System.currentTimeMillis();
+
+    Stripe(int capacity, long rotateMillis) {
+      this.rotateMillis = rotateMillis;
+      this.tables = new Table[] { new Table(capacity), new Table(capacity) };
+    }
+
+    synchronized long[] lookup(long key) {
+      long[] found = tables[current].get(key);
+      return found != null ? found : tables[1 - current].get(key);
+    }
+
+    synchronized void record(long key, long id, long sequence) {
+      long now = System.currentTimeMillis();
+      if(tables[current].isFull() || now - rotatedAt >= rotateMillis) {
+        current = 1 - current;
+        tables[current].clear();
+        rotatedAt = now;
+      }
+
+      tables[current].put(key, id, sequence);
+    }
+  }
+
+  static class Table {
+    private final long[] keys, ids, sequences;
+    private final int mask;
+    private int size;
+
+    Table(int capacity) {
+      int slots = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+      keys = new long[slots];
+      ids = new long[slots];
+      sequences = new long[slots];
+      mask = slots - 1;
+    }
+
+    long[] get(long key) {
+      for(int i = (int)key & mask; keys[i] != 0; i = (i + 1) & mask) {
+        if(keys[i] == key) return new long[] { ids[i], sequences[i] };
+      }
+
+      return null;
+    }
+
+    void put(long key, long id, long sequence) {
+      int i = (int)key & mask;
+      while(keys[i] != 0 && keys[i] != key) i = (i + 1) & mask;
+
+      if(keys[i] == 0) size++;
+      keys[i] = key;
+      ids[i] = id;
+      sequences[i] = sequence;
+    }
+
+    boolean isFull() {
+      return size >= keys.length / 2;
+    }
+
+    void clear() {
+      Arrays.fill(keys, 0L);
+      size = 0;
+    }
+  }
+}
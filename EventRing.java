@@ -0,0 +1,247 @@
+/**
+ * <p>
+ * The EventRing class is a preallocated ring buffer that passes events from the room actors of the
+ * {@link MessgrServer MessgrServer} to a set of independent stages, each running on its own thread. An event is written
+ * into its slot once and then read in place by every stage, so nothing is copied or queued per stage. Each stage tracks
+ * its own sequence and only waits for events that have been published.
+ * </p>
+ *
+ * <p>
+ * Publishers claim a slot with a single atomic increment and mark it available once it is filled; stages read up to the
+ * highest contiguous available slot and process that run as one batch. A publisher only waits when the slowest stage is
+ * a full ring behind, which is the backpressure that keeps memory bounded.
+ * </p>
+ *
+ * <p>
+ * Stages that may be slow without holding up publishers, such as a database writer, are added with
+ * {@link #addDetachedStage(String, Function, int, Handler) addDetachedStage}. The ring only copies what such a stage
+ * needs out of each event into a bounded queue, which the stage drains on its own thread; when the queue is full the
+ * value is dropped and counted instead of waited for.
+ * </p>
+ *
+ * @author Adrian Sanchez
+ */
+
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+class EventRing<E> {
+  interface Handler<E> {
+    void onEvent(E event, long sequence, boolean endOfBatch) throws Exception;
+  }
+
+  private final List<E> slots;
+  private final AtomicLongArray available;
+  private final int mask;
+  private final AtomicLong claimed = new AtomicLong(-1);
+  private final List<Stage> stages = new ArrayList<>();
+  private final List<Detached<?>> detached = new ArrayList<>();
+  private volatile boolean running;
+
+  public EventRing(int size, Supplier<E> factory) {
+    int capacity = Integer.highestOneBit(Math.max(size, 2) - 1) << 1;
+
+    slots = new ArrayList<>(capacity);
+    available = new AtomicLongArray(capacity);
+    mask = capacity - 1;
+
+    for(int i = 0; i < capacity; i++) {
+      slots.add(factory.get());
+      available.set(i, -1);
+    }
+  }
+
+  /**
+   * Adds a stage that sees every event published to the ring. Stages must be added before the ring is started.
+   */
+  public void addStage(String name, Handler<E> handler) {
+    if(running) throw new IllegalStateException("Stages must be added before the ring is started");
+
+    stages.add(new Stage(name, handler));
+  }
+
+  /**
+   * Adds a stage that is handed what <i>take</i> returns for every event through a queue of <i>capacity</i> values, so
+   * it can fall behind without publishers waiting for it. Events <i>take</i> returns null for are skipped, and values
+   * that don't fit in the queue are dropped and counted in {@link #getDropped(String) getDropped}. Stages must be added
+   * before the ring is started.
+   */
+  public <T> void addDetachedStage(String name, Function<E, T> take, int capacity, Handler<T> handler) {
+    Detached<T> d = new Detached<>(name, capacity, handler);
+    detached.add(d);
+
+    addStage(name, (e, seq, endOfBatch) -> {
+      T value = take.apply(e);
+      if(value != null && !d.queue.offer(value)) d.dropped.incrementAndGet();
+    });
+  }
+
+  public void start() {
+    running = true;
+
+    for(Stage s : stages) {
+      Thread t = new Thread(s, "ring-" + s.name);
+      t.setDaemon(true);
+      t.start();
+    }
+
+    for(Detached<?> d : detached) {
+      Thread t = new Thread(d, "ring-" + d.name + "-writer");
+      t.setDaemon(true);
+      t.start();
+    }
+  }
+
+  public void stop() {
+    running = false;
+  }
+
+  /**
+   * Claims the next slot, lets <i>writer</i> fill it in and makes it visible to the stages.
+   */
+  public long publish(Consumer<E> writer) {
+    long seq = claimed.incrementAndGet();
+
+    int idle = 0;
+    while(seq - slots.size() >= minimumStageSequence()) idle = backOff(idle);
+
+    writer.accept(slots.get((int)seq & mask));
+    available.set((int)seq & mask, seq);
+
+    return seq;
+  }
+
+  public int getCapacity() {
+    return slots.size();
+  }
+
+  /**
+   * Returns how many published events the named stage has yet to process.
+   */
+  public long getBacklog(String stage) {
+    long queued = 0;
+    for(Detached<?> d : detached) {
+      if(d.name.equals(stage)) queued = d.queue.size();
+    }
+
+    for(Stage s : stages) {
+      if(s.name.equals(stage)) return claimed.get() - s.sequence.get() + queued;
+    }
+
+    return 0;
+  }
+
+  /**
+   * Returns how many values the named detached stage has dropped because its queue was full.
+   */
+  public long getDropped(String stage) {
+    for(Detached<?> d : detached) {
+      if(d.name.equals(stage)) return d.dropped.get();
+    }
+
+    return 0;
+  }
+
+  /**
+   * Returns the backlog of the stage furthest behind.
+   */
+  public long getBacklog() {
+    return claimed.get() - minimumStageSequence();
+  }
+
+  private long minimumStageSequence() {
+    long min = Long.MAX_VALUE;
+    for(Stage s : stages) min = Math.min(min, s.sequence.get());
+
+    return stages.isEmpty() ? claimed.get() : min;
+  }
+
+  // Spin briefly, then yield, then park so an idle stage or a blocked publisher doesn't burn a core
+  private static int backOff(int idle) {
+    if(idle < 100) Thread.onSpinWait();
+    else if(idle < 200) Thread.yield();
+    else LockSupport.parkNanos(50000L);
+
+    return idle + 1;
+  }
+
+  class Stage implements Runnable {
+    private final String name;
+    private final Handler<E> handler;
+    private final AtomicLong sequence = new AtomicLong(-1);
+
+    Stage(String name, Handler<E> handler) {
+      this.name = name;
+      this.handler = handler;
+    }
+
+    @Override
+    public void run() {
+      long next = 0;
+      int idle = 0;
+
+      while(running) {
+        long end = next;
+        while(available.get((int)end & mask) == end) end++;
+
+        if(end == next) {
+          idle = backOff(idle);
+          continue;
+        }
+
+        idle = 0;
+        for(long seq = next; seq < end; seq++) {
+          try {
+            handler.onEvent(slots.get((int)seq & mask), seq, seq == end - 1);
+          } catch(Exception ex) {
+            System.out.println(ex);
+          }
+        }
+
+        sequence.set(end - 1);
+        next = end;
+      }
+    }
+  }
+
+  class Detached<T> implements Runnable {
+    private final String name;
+    private final ArrayBlockingQueue<T> queue;
+    private final Handler<T> handler;
+    private final AtomicLong dropped = new AtomicLong();
+
+    Detached(String name, int capacity, Handler<T> handler) {
+      this.name = name;
+      this.queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+      this.handler = handler;
+    }
+
+    @Override
+    public void run() {
+      long seq = 0;
+
+      while(running) {
+        T value;
+        try {
+          value = queue.poll(50, TimeUnit.MILLISECONDS);
+        } catch(InterruptedException ex) {
+          return;
+        }
+        if(value == null) continue;
+
+        try {
+          handler.onEvent(value, seq++, queue.isEmpty());
+        } catch(Exception ex) {
+          System.out.println(ex);
+        }
+      }
+    }
+  }
+}
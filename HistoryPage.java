@@ -0,0 +1,99 @@
+/**
+ * <p>
+ * The HistoryPage class carries a page of chat history from the {@link MessgrServer MessgrServer} to the client. Pages are
+ * addressed with opaque cursors that encode the room and the sequence number of a message, so fetching older or newer
+ * messages is always a keyset lookup on the {@link ChatLog ChatLog} no matter how deep into a room's history the client
+ * scrolls. Large pages are streamed as several HistoryPage chunks; the first and last chunks of a page are flagged so the
+ * client knows when a page starts and when it is complete.
+ * </p>
+ *
+ * @author Adrian Sanchez
+ */
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+
+class HistoryPage implements java.io.Serializable {
+  public static final long serialVersionUID = 6021593870544L;
+
+  private int room;
+  private ArrayList<ChatEntry> entries;
+  private String before, after;
+  private boolean latest, forward, first, last, more;
+
+  public HistoryPage(int room, ArrayList<ChatEntry> entries, String before, String after, boolean latest, boolean forward, boolean first, boolean last, boolean more) {
+    this.room = room;
+    this.entries = entries;
+    this.before = before;
+    this.after = after;
+    this.latest = latest;
+    this.forward = forward;
+    this.first = first;
+    this.last = last;
+    this.more = more;
+  }
+
+  public int getRoom() {
+    return this.room;
+  }
+
+  public ArrayList<ChatEntry> getEntries() {
+    return this.entries;
+  }
+
+  /**
+   * Returns the cursor that fetches the messages preceding this page.
+   */
+  public String getBefore() {
+    return this.before;
+  }
+
+  /**
+   * Returns the cursor that fetches the messages following this page.
+   */
+  public String getAfter() {
+    return this.after;
+  }
+
+  public boolean isLatest() {
+    return this.latest;
+  }
+
+  /**
+   * Returns true if this page follows its cursor rather than preceding it, as when a client catches up after reconnecting.
+   */
+  public boolean isForward() {
+    return this.forward;
+  }
+
+  public boolean isFirst() {
+    return this.first;
+  }
+
+  public boolean isLast() {
+    return this.last;
+  }
+
+  public boolean hasMore() {
+    return this.more;
+  }
+
+  public static String cursor(int room, long seq) {
+    return Base64.getUrlEncoder().withoutPadding().encodeToString((room + ":" + seq).getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Decodes a cursor into a <i>{room, sequence}</i> pair, or returns null if the cursor is missing or malformed.
+   */
+  public static long[] parseCursor(String cursor) {
+    if(cursor == null) return null;
+
+    try {
+      String[] parts = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split(":");
+      return new long[] { Integer.parseInt(parts[0]), Long.parseLong(parts[1]) };
+    } catch(IllegalArgumentException | ArrayIndexOutOfBoundsException ex) {
+      return null;
+    }
+  }
+}
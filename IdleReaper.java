@@ -0,0 +1,74 @@
+/**
+ * <p>
+ * The IdleReaper class closes the connections of the {@link MessgrServer MessgrServer} that have gone quiet. Clients
+ * send a heartbeat every <i>heartbeat.interval_seconds</i>, so a connection that hasn't been heard from within the idle
+ * timeout belongs to a client that is gone, or to a half-open TCP connection that would otherwise only be noticed when
+ * a write to it failed. Connections that already know they are broken, such as one whose outbox gave up after a failed
+ * write, are closed on the same pass.
+ * </p>
+ *
+ * <p>
+ * The reaper walks the {@link SessionRegistry SessionRegistry} on a shared timer, so it needs no thread of its own.
+ * Closing a connection is left to the connection, which must take it out of the registry.
+ * </p>
+ *
+ * @author Adrian Sanchez
+ */
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+class IdleReaper {
+  interface Peer {
+    long getLastHeard();
+    boolean isBroken();
+    void close();
+  }
+
+  private final SessionRegistry<? extends Peer> sessions;
+  private final long idleTimeout;
+  private final LongAdder reaped = new LongAdder();
+  private ScheduledFuture<?> ticker;
+
+  /**
+   * @param idleTimeout milliseconds a connection may stay silent before it is closed
+   */
+  public IdleReaper(SessionRegistry<? extends Peer> sessions, long idleTimeout) {
+    this.sessions = sessions;
+    this.idleTimeout = idleTimeout;
+  }
+
+  public void start(ScheduledExecutorService timer, long period, TimeUnit unit) {
+    ticker = timer.scheduleAtFixedRate(this::reap, period, period, unit);
+  }
+
+  public void stop() {
+    if(ticker != null) ticker.cancel(false);
+  }
+
+  /**
+   * Closes every connection that is idle or broken, and returns how many were closed.
+   */
+  public int reap() {
+    long cutoff = System.currentTimeMillis() - idleTimeout;
+    int closed = 0;
+
+    for(SessionRegistry.Session<? extends Peer> s : sessions.all()) {
+      Peer p = s.getTransport();
+
+      if(p.getLastHeard() < cutoff || p.isBroken()) {
+        p.close();
+        closed++;
+      }
+    }
+
+    reaped.add(closed);
+    return closed;
+  }
+
+  public long getReaped() {
+    return reaped.sum();
+  }
+}
@@ -0,0 +1,81 @@
+/**
+ * <p>
+ * The LatencyHistogram class records latencies into log-linear buckets: every power of two is split into four buckets,
+ * so a reported percentile is never more than 25% above the true value. Recording is a single atomic increment and the
+ * histogram uses a fixed amount of memory no matter how many values it has seen, which makes it cheap enough to keep on
+ * hot paths such as sending a message.
+ * </p>
+ *
+ * @author Adrian Sanchez
+ */
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+class LatencyHistogram {
+  private static final int SUB_BUCKETS = 4;
+  private static final int BUCKETS = SUB_BUCKETS + 40 * SUB_BUCKETS;
+
+  private final String name;
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final LongAdder total = new LongAdder();
+
+  public LatencyHistogram(String name) {
+    this.name = name;
+  }
+
+  public void record(long nanos) {
+    long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+
+    counts.incrementAndGet(bucketOf(micros));
+    total.increment();
+  }
+
+  public long getCount() {
+    return total.sum();
+  }
+
+  /**
+   * Returns the upper bound, in microseconds, of the bucket holding the given percentile (0 to 100).
+   */
+  public long percentile(double p) {
+    long n = getCount();
+    if(n == 0) return 0;
+
+    long rank = (long)Math.ceil(n * p / 100.0), seen = 0;
+    for(int i = 0; i < BUCKETS; i++) {
+      seen += counts.get(i);
+      if(seen >= Math.max(rank, 1)) return upperBound(i);
+    }
+
+    return upperBound(BUCKETS - 1);
+  }
+
+  public void reset() {
+    for(int i = 0; i < BUCKETS; i++) counts.set(i, 0);
+    total.reset();
+  }
+
+  public String toString() {
+    return name + ": n=" + getCount() + " p50=" + percentile(50) + "us p90=" + percentile(90) + "us p99=" + percentile(99) + "us max=" + percentile(100) + "us";
+  }
+
+  private static int bucketOf(long v) {
+    if(v < SUB_BUCKETS) return (int)v;
+
+    int exp = 63 - Long.numberOfLeadingZeros(v);
+    int sub = (int)((v >>> (exp - 2)) & (SUB_BUCKETS - 1));
+
+    return Math.min(BUCKETS - 1, SUB_BUCKETS + (exp - 2) * SUB_BUCKETS + sub);
+  }
+
+  private static long upperBound(int bucket) {
+    if(bucket < SUB_BUCKETS) return bucket;
+
+    int exp = (bucket - SUB_BUCKETS) / SUB_BUCKETS + 2;
+    int sub = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+
+    return ((long)(SUB_BUCKETS + sub + 1) << (exp - 2)) - 1;
+  }
+}
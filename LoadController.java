@@ -0,0 +1,167 @@
+/**
+ * <p>
+ * The LoadController class watches how far behind the {@link MessgrServer MessgrServer} is falling and degrades the
+ * least important traffic first so chat lines keep flowing. It samples three signals on a fixed tick: the number of
+ * messages queued in client {@link Outbox outboxes}, the backlog of the {@link EventRing pipeline}, and how late the
+ * tick itself runs, which shows when the machine is starved for CPU.
+ * </p>
+ *
+ * <p>
+ * While any signal is above its limit the level rises by one each tick, up to {@link #MAX_LEVEL MAX_LEVEL}. At level 1
+ * typing indicators are dropped, at level 2 each client is sent only one of its roster refreshes in
+ * {@link #ROSTER_DIVISOR ROSTER_DIVISOR}, and at level 3 join and leave notices are dropped as well. Once every signal has been below half its limit for
+ * <i>load.cooldown_ticks</i> ticks in a row, the level falls by one again. Chat traffic is never shed.
+ * </p>
+ *
+ * <p>
+ * Rooms are also judged on their own. In a room whose {@link RoomActivity RoomActivity} shows more than
+ * <i>load.hot_room_messages_per_second</i>, typing indicators are dropped at any level, since they say little when
+ * messages arrive that fast and would otherwise be most of what the room sends.
+ * </p>
+ *
+ * @author Adrian Sanchez
+ */
+
+import java.util.Properties;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+class LoadController {
+  public static final int MAX_LEVEL = 3;
+  public static final int ROSTER_DIVISOR = 4;
+
+  private static final String[] DESCRIPTIONS = {
+    "normal", "shedding typing indicators", "shedding typing indicators, slowing roster updates",
+    "shedding typing indicators, slowing roster updates, shedding join/leave notices"
+  };
+
+  private final LongSupplier queued, backlog;
+  private final long queuedLimit, backlogLimit, lagLimitNanos, tickNanos;
+  private final double hotRoomRate;
+  private final int cooldownTicks;
+  private final Consumer<String> log;
+
+  private final LongAdder[] shed = new LongAdder[TrafficClass.values().length];
+  private volatile int level;
+  private volatile long lastLagNanos;
+
+  private int calmTicks;
+  private long nextTick;
+  private ScheduledFuture<?> ticker;
+
+  /**
+   * @param queued messages queued across all client outboxes
+   * @param backlog events the slowest pipeline stage has yet to process
+   * @param log receives a line every time the level changes
+   */
+  public LoadController(Properties prop, LongSupplier queued, LongSupplier backlog, Consumer<String> log) {
+    this.queued = queued;
+    this.backlog = backlog;
+    this.log = log;
+
+    queuedLimit = Long.parseLong(prop.getProperty("load.queued_limit", "20000"));
+    backlogLimit = Long.parseLong(prop.getProperty("load.backlog_limit", "4096"));
+    lagLimitNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(prop.getProperty("load.lag_limit_ms", "100")));
+    tickNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(prop.getProperty("load.tick_ms", "250")));
+    cooldownTicks = Integer.parseInt(prop.getProperty("load.cooldown_ticks", "8"));
+    hotRoomRate = Double.parseDouble(prop.getProperty("load.hot_room_messages_per_second", "20"));
+
+    for(int i = 0; i < shed.length; i++) shed[i] = new LongAdder();
+  }
+
+  public void start(ScheduledExecutorService timer) {
+    nextTick = System.nanoTime() + tickNanos;
+    ticker = timer.scheduleAtFixedRate(this::tick, tickNanos, tickNanos, TimeUnit.NANOSECONDS);
+  }
+
+  public void stop() {
+    if(ticker != null) ticker.cancel(false);
+  }
+
+  /**
+   * Returns true if a message of the given class should be sent at the current level, and counts it as shed if not.
+   * Roster refreshes are checked with {@link #admit(TrafficClass, long) admit(traffic, tick)} instead.
+   */
+  public boolean admit(TrafficClass traffic) {
+    return admit(traffic, 0);
+  }
+
+  /**
+   * Like {@link #admit(TrafficClass) admit}, where <i>tick</i> counts the roster refreshes of the client being sent to,
+   * so every client keeps one in {@link #ROSTER_DIVISOR ROSTER_DIVISOR} of its own refreshes however many others
+   * there are.
+   */
+  public boolean admit(TrafficClass traffic, long tick) {
+    int l = level;
+    boolean admitted;
+
+    switch(traffic) {
+      case TYPING: admitted = l < 1; break;
+      case ROSTER: admitted = l < 2 || tick % ROSTER_DIVISOR == 0; break;
+      case PRESENCE: admitted = l < 3; break;
+      default: admitted = true;
+    }
+
+    if(!admitted) shed[traffic.ordinal()].increment();
+    return admitted;
+  }
+
+  /**
+   * Like {@link #admit(TrafficClass) admit}, but also sheds typing indicators in a room that is busy on its own.
+   */
+  public boolean admit(TrafficClass traffic, RoomActivity room) {
+    if(traffic == TrafficClass.TYPING && room.getMessagesPerSecond() > hotRoomRate) {
+      shed[traffic.ordinal()].increment();
+      return false;
+    }
+
+    return admit(traffic);
+  }
+
+  public int getLevel() {
+    return this.level;
+  }
+
+  public long getShed(TrafficClass traffic) {
+    return shed[traffic.ordinal()].sum();
+  }
+
+  public long getLastLagMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(lastLagNanos);
+  }
+
+  public String toString() {
+    return "load level " + level + " (" + DESCRIPTIONS[level] + "), shed typing " + getShed(TrafficClass.TYPING) + ", roster "
+      + getShed(TrafficClass.ROSTER) + ", presence " + getShed(TrafficClass.PRESENCE);
+  }
+
+  private void tick() {
+    long now = System.nanoTime();
+    long lag = Math.max(0, now - nextTick);
+    nextTick = now - lag + tickNanos;
+    lastLagNanos = lag;
+
+    long q = queued.getAsLong(), b = backlog.getAsLong();
+
+    if(q > queuedLimit || b > backlogLimit || lag > lagLimitNanos) {
+      calmTicks = 0;
+      if(level < MAX_LEVEL) setLevel(level + 1, "queued " + q + ", backlog " + b + ", lag " + TimeUnit.NANOSECONDS.toMillis(lag) + "ms");
+    } else if(q <= queuedLimit / 2 && b <= backlogLimit / 2 && lag <= lagLimitNanos / 2) {
+      if(level > 0 && ++calmTicks >= cooldownTicks) {
+        calmTicks = 0;
+        setLevel(level - 1, "load has eased");
+      }
+    } else {
+      calmTicks = 0;
+    }
+  }
+
+  private void setLevel(int l, String reason) {
+    level = l;
+    log.accept("Load level " + l + ": " + DESCRIPTIONS[l] + " (" + reason + ")");
+  }
+}
@@ -0,0 +1,57 @@
+/**
+ * <p>
+ * The MessageIdGenerator class hands out 64-bit message ids that sort by creation time. An id is made of 41 bits of
+ * milliseconds since {@link #EPOCH EPOCH}, a 10-bit node id that keeps servers from colliding, and a 12-bit counter for
+ * messages created within the same millisecond. Ids are generated without locks by advancing a single packed
+ * <i>(timestamp, counter)</i> word with compare-and-set.
+ * </p>
+ *
+ * <p>
+ * The generator never goes backwards. If the system clock is set back, ids keep counting up from the last one issued
+ * until the clock catches up again, and a counter that overflows simply borrows the next millisecond.
+ * </p>
+ *
+ * @author Adrian Sanchez
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+
+class MessageIdGenerator {
+  public static final long EPOCH = 1451606400000L; // 2016-01-01T00:00:00Z
+
+  private static final int NODE_BITS = 10;
+  private static final int SEQUENCE_BITS = 12;
+  private static final long MAX_NODE = (1L << NODE_BITS) - 1;
+  private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+
+  private final long node;
+  private final AtomicLong last = new AtomicLong();
+
+  public MessageIdGenerator(int node) {
+    if(node < 0 || node > MAX_NODE)
+      throw new IllegalArgumentException("Node id must be between 0 and " + MAX_NODE);
+
+    this.node = node;
+  }
+
+  public long nextId() {
+    while(true) {
+      long prev = last.get();
+      long now = System.currentTimeMillis() - EPOCH;
+
+      // Either start a new millisecond or bump the counter, which carries into the timestamp when it overflows
+      long next = now > (prev >>> SEQUENCE_BITS) ? now << SEQUENCE_BITS : prev + 1;
+
+      if(last.compareAndSet(prev, next))
+        return ((next >>> SEQUENCE_BITS) << (NODE_BITS + SEQUENCE_BITS)) | (node << SEQUENCE_BITS) | (next & SEQUENCE_MASK);
+    }
+  }
+
+  public static long timestampOf(long id) {
+    return (id >>> (NODE_BITS + SEQUENCE_BITS)) + EPOCH;
+  }
+
+  public static int nodeOf(long id) {
+    return (int)((id >>> SEQUENCE_BITS) & MAX_NODE);
+  }
+}
@@ -31,6 +31,9 @@ import java.net.NetworkInterface;
 import java.util.*;
 import java.util.concurrent.*;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.sql.*;
 import javafx.application.Application;
 import javafx.application.Platform;
@@ -55,6 +58,7 @@ import javafx.scene.control.MenuBar;
 import javafx.scene.control.Menu;
 import javafx.scene.control.MenuItem;
 import javafx.scene.control.ScrollPane;
+import javafx.scene.control.Tooltip;
 import javafx.scene.image.ImageView;
 import javafx.scene.image.Image;
 import javafx.scene.text.Text;
@@ -97,24 +101,51 @@ public class Messgr extends Application {
   protected ToolBar roomsHud;
   protected GridPane roomsPane;
   protected ArrayList<String> roomCategories = new ArrayList<>(Arrays.asList("Art", "Books", "Humor", "Computers", "Hobbies", "Lifestyle", "Movies", "Musics", "Politics", "School", "Science", "Spirituality"));
-  private ArrayList<User> allUsers = null;
+  private ArrayList<UserRef> allUsers = new ArrayList<>();
+
+  private static final int HEARTBEAT_INTERVAL = 10000;
+  private static final int HEARTBEAT_TIMEOUT = 35000;
+  private static final String TOKEN_FILE = "session.token";
+  private static final int TOP_ROOMS = 20;
 
   private String host = "messgr.net";
 
   private Socket sock;
-  private ObjectOutputStream toServer;
+  private volatile ObjectOutputStream toServer;
   private ObjectInputStream fromServer;
+  private volatile boolean closing = false;
 
   private Thread connectionThread, typingCheckThread, allUsersUpdateThread;
-  private ScheduledExecutorService usersUpdate;
+  private ScheduledExecutorService usersUpdate, heartbeats;
 
   private Connection connection;
 
+  private Stage window;
   private User activeUser;
   private ChatroomInfo currChatRoom;
 
   private boolean receivingInput = false;
 
+  private String historyCursor;
+  private boolean loadingHistory = false, historyPrepended = false;
+  private int historyInsertIdx = 0;
+
+  private ConcurrentHashMap<Integer, Long> lastSeen = new ConcurrentHashMap<>();
+  // Sequences delivered live in each room whose catch-up after a reconnect hasn't finished yet
+  private ConcurrentHashMap<Integer, Set<Long>> catchingUp = new ConcurrentHashMap<>();
+  private ConcurrentHashMap<Long, PendingMessage> pendingSends = new ConcurrentHashMap<>();
+  private ConcurrentHashMap<Long, CompletableFuture<AuthResult>> pendingAuth = new ConcurrentHashMap<>();
+  private ConcurrentHashMap<String, CompletableFuture<List<Integer>>> pendingRankings = new ConcurrentHashMap<>();
+  private int roomsRequest;
+  private Set<Long> ackedIds = Collections.newSetFromMap(new LinkedHashMap<Long, Boolean>() {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+      return size() > 1000;
+    }
+  });
+  private LatencyHistogram sendLatency = new LatencyHistogram("send-to-ack");
+  private long lastTypingSent;
+
 
   /*  SETUP  SETUP  SETUP  SETUP  SETUP  SETUP  SETUP  SETUP  SETUP  SETUP  SETUP  SETUP  SETUP  SETUP  SETUP  SETUP  SETUP*/
   /* * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * */
@@ -123,6 +154,7 @@ public class Messgr extends Application {
 
   @Override
   public void start(Stage appStage) {
+    window = appStage;
     appStage.setTitle("Messgr");
     appStage.show();
     appStage.centerOnScreen();
@@ -131,6 +163,7 @@ public class Messgr extends Application {
     dbSetup();
 
     viewWelcome(appStage);
+    resumeSavedLogin(appStage);
 
     typingCheckThread = typingChecker();
     allUsersUpdateThread = updateAllUsers();
@@ -138,12 +171,19 @@ public class Messgr extends Application {
 
   @Override
   public void stop() {
-    if(activeUser != null) activeUser.setStatus("OFFLINE");
+    closing = true;
+
+    // The background flusher won't outlive the application, so the last status is written right away
+    if(activeUser != null) {
+      activeUser.setStatus("OFFLINE");
+      activeUser.flush();
+    }
 
     try {
-      HashMap<String, User> quitObj = new HashMap<>();
-      quitObj.put("quit", activeUser);
+      HashMap<String, UserRef> quitObj = new HashMap<>();
+      quitObj.put("quit", activeUser != null ? UserRef.of(activeUser) : null);
       toServer.writeObject(quitObj);
+      toServer.flush();
     } catch(IOException ex) {
       ex.printStackTrace();
     }
@@ -151,6 +191,9 @@ public class Messgr extends Application {
     if(usersUpdate != null && !usersUpdate.isShutdown())
       usersUpdate.shutdown();
 
+    if(heartbeats != null)
+      heartbeats.shutdown();
+
     if(typingCheckThread != null)
       typingCheckThread.interrupt();
 
@@ -169,12 +212,7 @@ public class Messgr extends Application {
 
   private void serverConnect() {
     try {
-      sock = new Socket(host, 8081);
-
-      toServer = new ObjectOutputStream(sock.getOutputStream());
-
-      fromServer = new ObjectInputStream(sock.getInputStream());
-
+      openConnection();
     } catch (Exception ex) {
       ex.printStackTrace();
     }
@@ -182,6 +220,122 @@ public class Messgr extends Application {
     connectionThread = new Thread(new ConnectionLoop(fromServer));
 
     connectionThread.start();
+
+    // The server echoes every heartbeat, so a connection that has been silent for several of them is dead
+    heartbeats = Executors.newSingleThreadScheduledExecutor();
+    heartbeats.scheduleAtFixedRate(() -> Platform.runLater(() -> {
+      if(toServer == null) return;
+
+      HashMap<String, Long> heartbeatObj = new HashMap<>();
+      heartbeatObj.put("heartbeat", System.currentTimeMillis());
+
+      try {
+        toServer.writeObject(heartbeatObj);
+        toServer.flush();
+      } catch(IOException ex) {
+        System.out.println(ex);
+      }
+    }), HEARTBEAT_INTERVAL, HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
+  }
+
+  private void openConnection() throws IOException {
+    sock = new Socket(host, 8081);
+    sock.setSoTimeout(HEARTBEAT_TIMEOUT);
+
+    toServer = new ObjectOutputStream(sock.getOutputStream());
+
+    fromServer = new ObjectInputStream(sock.getInputStream());
+  }
+
+  /**
+   * Tries to reach the server again after the connection drops, waiting twice as long after every failed attempt
+   * (with some jitter so a restarted server isn't hit by every client at once). Returns the new input stream, or null
+   * if the application is shutting down.
+   */
+  private ObjectInputStream reconnect() {
+    long delay = 500;
+
+    while(!closing) {
+      try {
+        Thread.sleep(delay + ThreadLocalRandom.current().nextLong(delay / 2 + 1));
+
+        openConnection();
+
+        return fromServer;
+      } catch(InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        return null;
+      } catch(IOException ex) {
+        System.out.println(ex);
+        delay = Math.min(delay * 2, 30000);
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   * Logs the active user back in on a fresh connection with the saved token and, once the server has accepted it, asks
+   * for the messages sent in each room since the last one this client saw. Without a token, or with one the server
+   * turns down, the user is logged out and sent back to the login view. Written from the JavaFX thread like everything
+   * else sent to the server, so it never interleaves with a message being sent.
+   */
+  private void resumeSession() {
+    Platform.runLater(() -> {
+      if(activeUser == null) return;
+
+      String token = loadToken();
+      if(token == null) {
+        endSession();
+        return;
+      }
+
+      User resuming = activeUser;
+      authenticate(AuthRequest.resume(token)).thenAccept(result -> Platform.runLater(() -> {
+        if(activeUser != resuming) return;
+
+        if(result.isAccepted()) rejoin();
+        else endSession();
+      }));
+    });
+  }
+
+  /**
+   * Sends the login, the catch-up request and any unacknowledged messages on a connection that has just authenticated.
+   * Must run on the JavaFX thread.
+   */
+  private void rejoin() {
+    // Set up before logging in, since messages can be delivered live as soon as the server has the login
+    HashMap<Integer, Long> resumeFrom = new HashMap<>(lastSeen);
+    catchingUp.clear();
+    for(Integer room : resumeFrom.keySet()) catchingUp.put(room, ConcurrentHashMap.newKeySet());
+
+    try {
+      HashMap<String, Object> successObj = new HashMap<>();
+      successObj.put("login_success", UserRef.of(activeUser));
+      successObj.put("room", activeUser.getLatestRoom());
+      toServer.writeObject(successObj);
+
+      HashMap<String, HashMap<Integer, Long>> resumeObj = new HashMap<>();
+      resumeObj.put("resume", resumeFrom);
+      toServer.writeObject(resumeObj);
+
+      // Anything still pending may or may not have reached the server; its client id lets the server drop repeats
+      for(PendingMessage p : pendingSends.values())
+        toServer.writeObject(p.entry);
+
+      toServer.flush();
+    } catch(IOException ex) {
+      System.out.println(ex);
+    }
+  }
+
+  /**
+   * Logs the active user out because their session can't be resumed, and shows the login view.
+   */
+  private void endSession() {
+    logUserOut();
+    viewLogin(window);
   }
 
   private void dbSetup() {
@@ -310,29 +464,11 @@ public class Messgr extends Application {
 
     submit.setOnAction(e -> {
       if(formValidate("signup", pane, username, password, dob)) {
-        try {
-          PreparedStatement query = connection.prepareStatement("INSERT INTO Users (alias, password, first_name, last_name, dob, gender) VALUES (?, ?, ?, ?, ?, ?)");
-          query.setString(1, username.getText());
-          query.setString(2, BCrypt.hashpw(password.getText(), BCrypt.gensalt(16)));
-          query.setString(3, (!first_name.getText().isEmpty() ? first_name.getText() : ""));
-          query.setString(4, (!last_name.getText().isEmpty() ? last_name.getText() : ""));
-          query.setString(5, (!dob.getText().isEmpty() ? dob.getText() : ""));
-          query.setString(6, (male.getToggleGroup().getSelectedToggle() != null ? ((RadioButton)male.getToggleGroup().getSelectedToggle()).getText() : ""));
-
-          query.executeUpdate();
+        String selectedGender = male.getToggleGroup().getSelectedToggle() != null ? ((RadioButton)male.getToggleGroup().getSelectedToggle()).getText() : "";
 
-          activeUser = new User(username.getText());
-          activeUser.setStatus("ONLINE");
-
-          HashMap<String, User> successObj = new HashMap<>();
-          successObj.put("login_success", activeUser);
-
-          toServer.writeObject(successObj);
-
-          viewChat(s);
-        } catch(Exception ex) {
-          System.out.println(ex);
-        }
+        // The server hashes the password and creates the account; the form stays responsive meanwhile
+        authenticate(AuthRequest.signup(username.getText(), password.getText(), first_name.getText(), last_name.getText(), dob.getText(), selectedGender))
+          .thenAccept(result -> Platform.runLater(() -> completeLogin(s, pane, result)));
       }
     });
 
@@ -378,14 +514,14 @@ public class Messgr extends Application {
 
     loginButton.setOnAction(e -> {
       if(formValidate("login", pane, username, password)) {
-        viewChat(s);
+        logUserIn(s, pane, username, password);
       }
     });
 
     username.setOnKeyPressed(e -> {
       if(e.getCode().toString().equals("ENTER")) {
         if(formValidate("login", pane, username, password)) {
-          viewChat(s);
+          logUserIn(s, pane, username, password);
         }
       }
     });
@@ -393,7 +529,7 @@ public class Messgr extends Application {
     password.setOnKeyPressed(e -> {
       if(e.getCode().toString().equals("ENTER")) {
         if(formValidate("login", pane, username, password)) {
-          viewChat(s);
+          logUserIn(s, pane, username, password);
         }
       }
     });
@@ -413,6 +549,15 @@ public class Messgr extends Application {
   public void viewChat(Stage s) {
     currChatRoom = new ChatroomInfo(activeUser.getLatestRoom());
 
+    try {
+      HashMap<String, Integer> joinObj = new HashMap<>();
+      joinObj.put("join_room", activeUser.getLatestRoom());
+      toServer.writeObject(joinObj);
+      toServer.flush();
+    } catch(IOException ex) {
+      ex.printStackTrace();
+    }
+
     typing.getStyleClass().add("key-continue-alert");
 
     if(typingCheckThread == null) {
@@ -480,7 +625,7 @@ public class Messgr extends Application {
     userL.setPadding(new Insets(0.0, 3.0, 3.0, 3.0));
     userL.setId("userToolbarLink");
 
-    userStatus = createStatusLabel(activeUser);
+    userStatus = createStatusLabel(UserRef.of(activeUser));
     userStatus.setId("statusLabel");
 
     VBox userOpts = new VBox(userL, userStatus);
@@ -498,6 +643,11 @@ public class Messgr extends Application {
     chatroomTitle.setAlignment(Pos.CENTER);
     chatroomTitle.setId("chatroom-heading");
 
+    // Hovering the room name shows how long the server has been taking to acknowledge this client's messages
+    Tooltip latencyTip = new Tooltip();
+    chatroomTitle.setTooltip(latencyTip);
+    chatroomTitle.setOnMouseEntered(e -> latencyTip.setText(describeSendLatency()));
+
     VBox topContainer = new VBox(topBar, chatroomTitle);
     topContainer.setFillWidth(true);
 
@@ -515,16 +665,30 @@ public class Messgr extends Application {
     messagesContainer.heightProperty().addListener(new ChangeListener() {
       @Override
       public void changed(ObservableValue observable, Object oldvalue, Object newValue) {
-        textDisplay2.setVvalue((Double)newValue);
+        if(historyPrepended) {
+          // Older messages were inserted above the ones being read, so keep those in place instead of jumping down
+          double viewport = textDisplay2.getViewportBounds().getHeight();
+          double oldHeight = ((Number)oldvalue).doubleValue(), newHeight = ((Number)newValue).doubleValue();
+          double top = textDisplay2.getVvalue() * Math.max(0.0, oldHeight - viewport) + (newHeight - oldHeight);
+
+          textDisplay2.setVvalue(top / Math.max(1.0, newHeight - viewport));
+          historyPrepended = false;
+        } else {
+          textDisplay2.setVvalue((Double)newValue);
+        }
       }
     });
 
-    ArrayList<String> savedMessages = getLastNChats(activeUser.getLatestRoom());
-    for(String message : savedMessages)
-      outputMessage(message);
+    historyCursor = null;
+    requestHistory(null);
 
     textDisplay2.setContent(messagesContainer);
 
+    textDisplay2.vvalueProperty().addListener((obs, oldV, newV) -> {
+      if(newV.doubleValue() == 0.0 && historyCursor != null && !loadingHistory)
+        requestHistory(historyCursor);
+    });
+
     textDisplay2.boundsInParentProperty().addListener(new ChangeListener<Bounds>() {
       @Override
       public void changed(ObservableValue<? extends Bounds> observable, Bounds oldValue, Bounds newValue) {
@@ -661,6 +825,13 @@ public class Messgr extends Application {
         ChatEntry c = new ChatEntry(activeUser.getAlias(), i, activeUser.getLatestRoom());
 
         c.setMessage(textInput.getText());
+        c.setClientId(ThreadLocalRandom.current().nextLong());
+
+        // Show the message right away; it stays pending until the server acknowledges it
+        Label pending = createMessageLabel(activeUser.getAlias() + ": " + c.getMessage());
+        pending.getStyleClass().add("pending");
+        pendingSends.put(c.getClientId(), new PendingMessage(c, pending));
+        outputMessage(pending);
 
         try {
           toServer.writeObject(c);
@@ -670,9 +841,12 @@ public class Messgr extends Application {
         }
 
         textInput.setText("");
-      } else if(ev.getCode() != KeyCode.ENTER) {
-        HashMap<String, User> typingObj = new HashMap<>();
-        typingObj.put("user_typing", activeUser);
+      } else if(ev.getCode() != KeyCode.ENTER && System.currentTimeMillis() - lastTypingSent >= 1000) {
+        // Others see the indicator for a few seconds, so telling the server once a second is plenty
+        lastTypingSent = System.currentTimeMillis();
+
+        HashMap<String, UserRef> typingObj = new HashMap<>();
+        typingObj.put("user_typing", UserRef.of(activeUser));
 
         try {
           toServer.writeObject(typingObj);
@@ -771,10 +945,10 @@ public class Messgr extends Application {
         return;
       }
 
-      ArrayList<User> matches = getUserMatches(userSearch.getText());
+      ArrayList<UserRef> matches = getUserMatches(userSearch.getText());
       userSearchResults.getChildren().clear();
 
-      for(User m : matches) {
+      for(UserRef m : matches) {
         StackPane result = new StackPane();
         result.getStyleClass().add("user-search-match");
         result.setMaxWidth(Double.MAX_VALUE);
@@ -812,8 +986,6 @@ public class Messgr extends Application {
     BorderPane container = new BorderPane();
     container.setStyle("-fx-background-color: transparent");
 
-    ArrayList<ChatroomInfo> rooms = getRoomsByCategory("Top Rooms");
-
     StackPane roomCats = createRoomCategories(s, 100.0);
     roomCats.setId("room-categories-container");
 
@@ -847,7 +1019,7 @@ public class Messgr extends Application {
     /* Rooms view rooms content */
     roomsPane = new GridPane();
 
-    layoutRooms(s, rooms);
+    showRoomsByCategory(s, "Top Rooms");
 
     StackPane contentContainer = new StackPane();
     contentContainer.getChildren().add(roomsPane);
@@ -906,9 +1078,10 @@ public class Messgr extends Application {
             String pattern = roomSearch.getText();
             ArrayList<ChatroomInfo> matches = getRoomMatches(pattern);
 
+            roomsRequest++;
             layoutRooms(s, matches);
           } else {
-            layoutRooms(s, getRoomsByCategory(roomsTypeL.getText()));
+            showRoomsByCategory(s, roomsTypeL.getText());
           }
         });
       }
@@ -923,7 +1096,7 @@ public class Messgr extends Application {
   }
 
   public void viewCreateRoom(Stage s) {
-    ArrayList<User> userInvites = new ArrayList<>();
+    ArrayList<UserRef> userInvites = new ArrayList<>();
 
     Label headingLabel = new Label("Host a Room");
     headingLabel.setId("room-create-heading");
@@ -1029,10 +1202,10 @@ public class Messgr extends Application {
     });
 
     addUsersInput.setOnKeyReleased(kEv -> {
-      ArrayList<User> matches = getUserMatches(addUsersInput.getText());
+      ArrayList<UserRef> matches = getUserMatches(addUsersInput.getText());
       userMatchesList.getChildren().clear();
 
-      for(User m : matches) {
+      for(UserRef m : matches) {
         StackPane result = new StackPane();
         result.getStyleClass().add("user-search-match");
         result.setMaxWidth(Double.MAX_VALUE);
@@ -1083,7 +1256,7 @@ public class Messgr extends Application {
             addUsersList.getChildren().add(result);
             roomCreateStage.setHeight(300.0 + (addUsersList.getChildren().size() * 30));
 
-            userInvites.add(new User(uName.getText()));
+            userInvites.add(m);
           }
         });
 
@@ -1128,14 +1301,15 @@ public class Messgr extends Application {
             ResultSet rslt = select.executeQuery();
             rslt.next();
             if(isPrivate.isSelected()) {
-              for(User uI : userInvites) {
-                PreparedStatement roomMemsStatement = connection.prepareStatement("INSERT INTO ChatRoomMembers (chatroom_id, alias, accepted) VALUES (?, ?, ?)");
+              PreparedStatement roomMemsStatement = connection.prepareStatement("INSERT INTO ChatRoomMembers (chatroom_id, alias, accepted) VALUES (?, ?, ?)");
+              for(UserRef uI : userInvites) {
                 roomMemsStatement.setInt(1, rslt.getInt("chatroom_id"));
                 roomMemsStatement.setString(2, uI.getAlias());
                 roomMemsStatement.setInt(3, 0);
-
-                roomMemsStatement.executeUpdate();
+                roomMemsStatement.addBatch();
               }
+
+              if(!userInvites.isEmpty()) roomMemsStatement.executeBatch();
             }
 
             roomCreateStage.close();
@@ -1191,54 +1365,119 @@ public class Messgr extends Application {
 
 
 
-  public boolean logUserIn(Pane pane, TextField username, PasswordField password) {
-    boolean noError = true;
+  /**
+   * Asks the server to check the credentials. The answer arrives on the connection thread and is handed back to the
+   * JavaFX thread, which opens the chat or shows why the login failed.
+   */
+  public void logUserIn(Stage s, Pane pane, TextField username, PasswordField password) {
+    authenticate(AuthRequest.login(username.getText(), password.getText()))
+      .thenAccept(result -> Platform.runLater(() -> completeLogin(s, pane, result)));
+  }
+
+  /**
+   * Sends a login or signup to the server and returns the future its {@link AuthResult AuthResult} will complete.
+   */
+  public CompletableFuture<AuthResult> authenticate(AuthRequest req) {
+    CompletableFuture<AuthResult> result = new CompletableFuture<>();
+    if(toServer == null) {
+      result.complete(AuthResult.rejected(req, "Can't reach the server. Try again."));
+      return result;
+    }
+
+    pendingAuth.put(req.getRequestId(), result);
+
     try {
-      PreparedStatement stmt = connection.prepareStatement("SELECT * FROM Users WHERE alias = ?");
-      stmt.setString(1, (username.getText()));
+      toServer.writeObject(req);
+      toServer.flush();
+    } catch(IOException ex) {
+      System.out.println(ex);
+      pendingAuth.remove(req.getRequestId());
+      result.complete(AuthResult.rejected(req, "Can't reach the server. Try again."));
+    }
 
-      ResultSet existingUser = stmt.executeQuery();
-      if(existingUser.next()) {
-        String passHash = existingUser.getString("password");
-        if(BCrypt.checkpw(password.getText(), passHash)) {
-          activeUser = new User(existingUser.getString("alias"));
-          activeUser.setStatus("ONLINE");
-          //activeUser.setIP(sock.getLocalAddress().getHostAddress());
+    return result.completeOnTimeout(AuthResult.rejected(req, "The server did not answer. Try again."), 30, TimeUnit.SECONDS)
+      .whenComplete((r, ex) -> pendingAuth.remove(req.getRequestId()));
+  }
 
-          HashMap<String, User> successObj = new HashMap<>();
-          successObj.put("login_success", activeUser);
+  /**
+   * Logs straight back in with the token saved by the last session, if there is one and it is still good. If the
+   * server couldn't be reached the token is kept for next time and the login view is shown; a token the server turns
+   * down is deleted.
+   */
+  private void resumeSavedLogin(Stage s) {
+    String token = loadToken();
+    if(token == null) return;
 
-          try {
-            toServer.writeObject(successObj);
-          } catch(IOException ex) {
-            ex.printStackTrace();
-          }
+    if(toServer == null) {
+      viewLogin(s);
+      return;
+    }
 
-          noError = true;
-        } else {
-          errorLabel.setText("The username and password don't match. Try again.");
-          if(!pane.getChildren().contains(errorLabel)) pane.getChildren().add(errorLabel);
-          noError = false;
-        }
+    authenticate(AuthRequest.resume(token)).thenAccept(result -> Platform.runLater(() -> {
+      if(result.isAccepted()) {
+        completeLogin(s, null, result);
       } else {
-        errorLabel.setText("That user does not exist. Check your spelling or sign up.");
-        if(!pane.getChildren().contains(errorLabel)) pane.getChildren().add(errorLabel);
-        noError = false;
+        saveToken(null);
+        viewLogin(s);
       }
-    } catch(SQLException ex) { System.out.println(ex); }
+    }));
+  }
 
-    return noError;
+  private String loadToken() {
+    try {
+      return new String(Files.readAllBytes(Paths.get(TOKEN_FILE)), StandardCharsets.UTF_8).trim();
+    } catch(IOException ex) {
+      return null;
+    }
+  }
+
+  /**
+   * Saves the token to log back in with, or deletes the saved one if <i>token</i> is null.
+   */
+  private void saveToken(String token) {
+    try {
+      if(token == null) Files.deleteIfExists(Paths.get(TOKEN_FILE));
+      else Files.write(Paths.get(TOKEN_FILE), token.getBytes(StandardCharsets.UTF_8));
+    } catch(IOException ex) {
+      System.out.println(ex);
+    }
+  }
+
+  private void completeLogin(Stage s, Pane pane, AuthResult result) {
+    if(!result.isAccepted()) {
+      errorLabel.setText(result.getReason());
+      if(pane != null && !pane.getChildren().contains(errorLabel)) pane.getChildren().add(errorLabel);
+      return;
+    }
+
+    activeUser = new User(result.getAlias());
+    activeUser.setStatus("ONLINE");
+
+    HashMap<String, Object> successObj = new HashMap<>();
+    successObj.put("login_success", UserRef.of(activeUser));
+    successObj.put("room", activeUser.getLatestRoom());
+
+    try {
+      toServer.writeObject(successObj);
+      toServer.flush();
+    } catch(IOException ex) {
+      ex.printStackTrace();
+    }
+
+    viewChat(s);
   }
 
   public void logUserOut() {
     try {
-      HashMap<String, User> logoutObj = new HashMap<>();
-      logoutObj.put("logout_success", activeUser);
+      HashMap<String, UserRef> logoutObj = new HashMap<>();
+      logoutObj.put("logout_success", UserRef.of(activeUser));
       toServer.writeObject(logoutObj);
     } catch(IOException ex) {
       ex.printStackTrace();
     }
 
+    saveToken(null);
+
     usersUpdate.shutdown();
 
     typingCheckThread.interrupt();
@@ -1346,8 +1585,6 @@ public class Messgr extends Application {
     } else if(type.equals("login")) {
       errorLabel.setTranslateY(formCoords[0] + 15);
       errorLabel.setTranslateX(formCoords[1] - 20);
-
-      noError = logUserIn(pane, (TextField)nodes[0], (PasswordField)nodes[1]);
     } else if(type.equals("room-create")) {
       errorLabel.setTranslateY(formCoords[0] + 10);
       errorLabel.setTranslateX(formCoords[1] - 50.0);
@@ -1437,7 +1674,7 @@ public class Messgr extends Application {
     return false;
   }
 
-  public Label createStatusLabel(User u) {
+  public Label createStatusLabel(UserRef u) {
     Label userS = new Label(u.getStatus().toString());
     userS.setGraphic(new ImageView(new Image("assets/images/"+u.getStatus().toString().toLowerCase()+"_dot.png", 13, 8, false, true)));
     userS.getStyleClass().add("userStatus");
@@ -1523,7 +1760,7 @@ public class Messgr extends Application {
       opts.getChildren().add(opt);
 
       opt.setOnMouseClicked(e -> {
-        layoutRooms(s, getRoomsByCategory(opt.getText()));
+        showRoomsByCategory(s, opt.getText());
         roomsTypeL.setText(opt.getText());
       });
 
@@ -1598,33 +1835,93 @@ public class Messgr extends Application {
     return allRooms;
   }
 
-  public ArrayList<ChatroomInfo> getRoomsByCategory(String cat) {
+  /**
+   * Lays out the rooms of a category once the server has ranked them. Runs on the JavaFX thread and returns right away;
+   * an answer that arrives after another category was chosen or a search was typed is dropped.
+   */
+  private void showRoomsByCategory(Stage s, String cat) {
+    int request = ++roomsRequest;
+
+    getRoomsByCategory(cat).thenAccept(rooms -> Platform.runLater(() -> {
+      if(request == roomsRequest) layoutRooms(s, rooms);
+    }));
+  }
+
+  /**
+   * Lists the public rooms of a category, or the trending rooms for "Top Rooms". The rooms the server ranks highest by
+   * recent activity come first, followed by the rest of the category, or for "Top Rooms" by the most visited rooms.
+   * The list is read off the JavaFX thread once the ranking arrives.
+   */
+  public CompletableFuture<ArrayList<ChatroomInfo>> getRoomsByCategory(String cat) {
+    boolean top = cat.equals("Top Rooms");
+    return rankedRooms(top ? RoomRanking.ALL : cat).thenApplyAsync(ranked -> roomsOf(cat, top, ranked));
+  }
+
+  private ArrayList<ChatroomInfo> roomsOf(String cat, boolean top, List<Integer> ranked) {
     ArrayList<ChatroomInfo> rooms = new ArrayList<>();
 
     try {
-      if(cat.equals("Top Rooms")) {
-        Statement stmt = connection.createStatement();
-        ResultSet room = stmt.executeQuery("SELECT * FROM ChatRooms WHERE private = 0 ORDER BY ranking DESC LIMIT 20");
+      if(!ranked.isEmpty()) {
+        PreparedStatement stmt = connection.prepareStatement("SELECT * FROM ChatRooms WHERE chatroom_id IN (" + String.join(", ", Collections.nCopies(ranked.size(), "?")) + ")");
+        for(int i = 0; i < ranked.size(); i++) stmt.setInt(i + 1, ranked.get(i));
+
+        HashMap<Integer, ChatroomInfo> byId = new HashMap<>();
+        ResultSet room = stmt.executeQuery();
+        while(room.next()) byId.put(room.getInt("chatroom_id"), roomFrom(room));
 
-        while(room.next()) {
-          ChatroomInfo r = new ChatroomInfo(room.getInt("chatroom_id"), room.getString("name"), room.getString("host"), room.getString("type"), room.getInt("visits"), room.getInt("members"), room.getDate("created"));
-          rooms.add(r);
+        for(Integer id : ranked) {
+          if(byId.containsKey(id)) rooms.add(byId.get(id));
         }
+      }
+
+      PreparedStatement stmt;
+      if(top) {
+        stmt = connection.prepareStatement("SELECT * FROM ChatRooms WHERE private = 0 ORDER BY visits DESC LIMIT ?");
+        stmt.setInt(1, TOP_ROOMS + ranked.size());
       } else {
-        PreparedStatement stmt = connection.prepareStatement("SELECT * FROM ChatRooms WHERE type = ? AND private = 0");
+        stmt = connection.prepareStatement("SELECT * FROM ChatRooms WHERE type = ? AND private = 0");
         stmt.setString(1, cat);
-        ResultSet room = stmt.executeQuery();
+      }
 
-        while(room.next()) {
-          ChatroomInfo r = new ChatroomInfo(room.getInt("chatroom_id"), room.getString("name"), room.getString("host"), room.getString("type"), room.getInt("visits"), room.getInt("members"), room.getDate("created"));
-          rooms.add(r);
-        }
+      ResultSet room = stmt.executeQuery();
+      while(room.next() && (!top || rooms.size() < TOP_ROOMS)) {
+        if(!ranked.contains(room.getInt("chatroom_id"))) rooms.add(roomFrom(room));
       }
     } catch(SQLException ex) { System.out.println(ex); }
 
     return rooms;
   }
 
+  /**
+   * Asks the server for the ids of the trending rooms of a category, best first. The future completes when the answer
+   * arrives on the connection thread; a server that can't be reached or doesn't answer promptly leaves the list empty,
+   * so the rooms view still fills in. A category already asked for shares the answer to that request.
+   */
+  private CompletableFuture<List<Integer>> rankedRooms(String category) {
+    CompletableFuture<List<Integer>> ranked = new CompletableFuture<>();
+    CompletableFuture<List<Integer>> pending = pendingRankings.putIfAbsent(category, ranked);
+    if(pending != null) return pending;
+
+    try {
+      if(toServer == null) throw new IOException("Not connected to the server");
+
+      HashMap<String, String> topObj = new HashMap<>();
+      topObj.put("top_rooms", category);
+      toServer.writeObject(topObj);
+      toServer.flush();
+    } catch(IOException ex) {
+      System.out.println(ex);
+      ranked.complete(new ArrayList<>());
+    }
+
+    ranked.whenComplete((ids, ex) -> pendingRankings.remove(category, ranked));
+    return ranked.completeOnTimeout(new ArrayList<>(), 2, TimeUnit.SECONDS);
+  }
+
+  private ChatroomInfo roomFrom(ResultSet room) throws SQLException {
+    return new ChatroomInfo(room.getInt("chatroom_id"), room.getString("name"), room.getString("host"), room.getString("type"), room.getInt("visits"), room.getInt("members"), room.getDate("created"));
+  }
+
   public ArrayList<ChatroomInfo> getRoomMatches(String pattern) {
     ArrayList<ChatroomInfo> matches = new ArrayList<>();
 
@@ -1643,11 +1940,11 @@ public class Messgr extends Application {
     return matches;
   }
 
-  public ArrayList<User> getUserMatches(String pattern) {
-    ArrayList<User> matches = new ArrayList<>();
+  public ArrayList<UserRef> getUserMatches(String pattern) {
+    ArrayList<UserRef> matches = new ArrayList<>();
 
     if(!pattern.isEmpty()) {
-        for(User u : allUsers) {
+        for(UserRef u : allUsers) {
           if(u.getAlias().matches("(?i)^.*"+pattern+".*$"))
             matches.add(u);
         }
@@ -1685,7 +1982,7 @@ public class Messgr extends Application {
     return chats;
   }
 
-  public void addContact(User requester, User requested) {
+  public void addContact(User requester, UserRef requested) {
     try {
       PreparedStatement stmt = connection.prepareStatement("INSERT INTO UserContacts (alias, contact_alias) VALUES (?, ?)");
       stmt.setString(1, requester.getAlias());
@@ -1695,7 +1992,7 @@ public class Messgr extends Application {
     } catch (SQLException ex) { System.out.println(ex); }
   }
 
-  public boolean isContact(User user, User contact) {
+  public boolean isContact(User user, UserRef contact) {
     boolean flagged = false;
     try {
       PreparedStatement stmt = connection.prepareStatement("SELECT * FROM UserContacts WHERE alias = ? AND contact_alias = ?");
@@ -1711,7 +2008,84 @@ public class Messgr extends Application {
     return flagged;
   }
 
-  public void outputMessage(String message) {
+  /**
+   * Asks the server for the page of messages preceding <i>cursor</i> in the current room, or for the newest page
+   * when the cursor is null. The page is displayed by {@link #showHistory(HistoryPage page) showHistory} as it arrives.
+   */
+  public void requestHistory(String cursor) {
+    requestHistory(cursor, "before");
+  }
+
+  public void requestHistory(String cursor, String direction) {
+    HashMap<String, Object> historyObj = new HashMap<>();
+    historyObj.put("history_request", cursor);
+    historyObj.put("direction", direction);
+    historyObj.put("room", activeUser.getLatestRoom());
+    historyObj.put("limit", 50);
+
+    loadingHistory = true;
+
+    try {
+      toServer.writeObject(historyObj);
+      toServer.flush();
+    } catch(IOException ex) {
+      loadingHistory = false;
+      ex.printStackTrace();
+    }
+  }
+
+  public void showHistory(HistoryPage page) {
+    ArrayList<ChatEntry> entries = page.getEntries();
+
+    if(page.isForward()) {
+      // Catching up after a reconnect: skip anything already delivered live or sent from here. Live messages can
+      // arrive ahead of the page, so only the ones actually delivered are skipped, not everything below the newest
+      Set<Long> live = catchingUp.getOrDefault(page.getRoom(), Collections.emptySet());
+      synchronized(ackedIds) {
+        entries.removeIf(e -> live.contains(e.getSequence()) || ackedIds.contains(e.getId()) || pendingSends.containsKey(e.getClientId()));
+      }
+    }
+
+    if(page.isForward() || page.isLatest()) {
+      for(ChatEntry e : entries)
+        lastSeen.merge(e.getChatRoom(), e.getSequence(), Math::max);
+    }
+
+    if(page.isForward() && page.isLast()) {
+      if(page.hasMore()) {
+        Platform.runLater(() -> requestHistory(page.getAfter(), "after"));
+      } else {
+        catchingUp.remove(page.getRoom());
+      }
+    }
+
+    if(activeUser == null || messagesContainer == null || page.getRoom() != activeUser.getLatestRoom()) return;
+
+    ArrayList<Label> labels = new ArrayList<>();
+    for(ChatEntry e : entries)
+      labels.add(createMessageLabel(e.getName() + ": " + e.getMessage()));
+
+    Platform.runLater(() -> {
+      if(page.isForward()) {
+        messagesContainer.getChildren().addAll(labels);
+        return;
+      }
+
+      if(page.isFirst()) historyInsertIdx = 0;
+
+      if(!page.isLatest() && !labels.isEmpty()) historyPrepended = true;
+
+      messagesContainer.getChildren().addAll(historyInsertIdx, labels);
+      historyInsertIdx += labels.size();
+
+      if(page.isLast()) {
+        historyCursor = page.hasMore() ? page.getBefore() : null;
+        loadingHistory = false;
+      }
+    });
+  }
+
+  public Label createMessageLabel(String message) {
     Label m = new Label(message);
     m.getStyleClass().add("chat-message");
     m.setWrapText(true);
@@ -1721,7 +2095,64 @@ public class Messgr extends Application {
       m.setPadding(new Insets(12, 5, 4, 5));
     }
 
+    return m;
+  }
+
+  /**
+   * Settles a message that was displayed as pending when it was sent. The send-to-ack time is recorded and shown in
+   * the tooltip of the room heading.
+   */
+  public void reconcileSend(ChatAck ack) {
+    PendingMessage p = pendingSends.remove(ack.getClientId());
+    if(p == null) return;
+
+    // Throttled messages stay pending and are sent again once the server says there is room for them
+    if(!ack.isAccepted() && ack.getRetryAfter() > 0) {
+      pendingSends.put(ack.getClientId(), p);
+
+      CompletableFuture.delayedExecutor(ack.getRetryAfter(), TimeUnit.MILLISECONDS).execute(() -> Platform.runLater(() -> {
+        if(!pendingSends.containsKey(ack.getClientId())) return;
+
+        try {
+          toServer.writeObject(p.entry);
+          toServer.flush();
+        } catch(IOException ex) {
+          System.out.println(ex);
+        }
+      }));
+      return;
+    }
+
+    sendLatency.record(System.nanoTime() - p.sentAt);
 
+    if(ack.isAccepted()) {
+      synchronized(ackedIds) {
+        ackedIds.add(ack.getId());
+      }
+
+      Platform.runLater(() -> p.label.getStyleClass().remove("pending"));
+    } else {
+      Platform.runLater(() -> {
+        p.label.getStyleClass().remove("pending");
+        p.label.getStyleClass().add("rejected");
+        p.label.setText(p.label.getText() + " (not sent: " + ack.getReason() + ")");
+      });
+    }
+  }
+
+  private String describeSendLatency() {
+    long n = sendLatency.getCount();
+    if(n == 0) return "No messages sent yet";
+
+    return String.format("%d messages sent, acknowledged in %.1f ms (median), %.1f ms (p99)", n,
+        sendLatency.percentile(50) / 1000.0, sendLatency.percentile(99) / 1000.0);
+  }
+
+  public void outputMessage(String message) {
+    outputMessage(createMessageLabel(message));
+  }
+
+  public void outputMessage(Label m) {
     Platform.runLater(() -> {
       messagesContainer.setVgrow(m, Priority.ALWAYS);
 
@@ -1876,16 +2307,19 @@ public class Messgr extends Application {
       public void run() {
         usersUpdate = Executors.newSingleThreadScheduledExecutor();
         usersUpdate.scheduleAtFixedRate(() -> {
-          allUsers = new ArrayList<User>();
+          // Searching only needs aliases; a profile is loaded from its reference when it is opened
+          ArrayList<UserRef> users = new ArrayList<>();
           try {
             Statement stmt = connection.createStatement();
-            ResultSet users = stmt.executeQuery("SELECT alias FROM Users");
+            ResultSet rslt = stmt.executeQuery("SELECT alias, status FROM Users");
 
-            while(users.next()) {
-              if(activeUser != null && activeUser.getAlias().equals(users.getString("alias"))) continue;
+            while(rslt.next()) {
+              if(activeUser != null && activeUser.getAlias().equals(rslt.getString("alias"))) continue;
 
-              allUsers.add(new User(users.getString("alias")));
+              users.add(UserRef.of(rslt.getString("alias"), UserStatus.parse(rslt.getString("status"))));
             }
+
+            allUsers = users;
           } catch(SQLException ex) { System.out.println(ex); }
         }, 0, 30, TimeUnit.SECONDS);
       }
@@ -1901,99 +2335,177 @@ public class Messgr extends Application {
 
     @Override
     public void run() {
-      try {
-        input.readInt();
-
-        while(true) {
-          // Three different options here...
-          Object o = input.readObject();
-
-          // 1. Shutting down
-          if(o.equals(-1)) return;
-
-          // 2. Fetch the list of online users periodically
-          if(o instanceof HashMap && ((HashMap)o).keySet().contains("online_users")) {
-            List<User> whosHere = (List<User>)((HashMap)o).get("online_users");
-            whosHere.removeIf(u_pred -> u_pred.getStatus().equals("OFFLINE"));
-
-            Platform.runLater(() -> {
-              onlineUsers.getChildren().clear();
-              if(activeUser != null && activeUser.getAlias().equals(whosHere.get(0).getAlias()) && whosHere.size() == 1) {
-                Label noUsers = new Label("Nobody's here :(");
-                noUsers.setStyle("-fx-padding: 5px 10px 5px 10px;");
-                onlineUsers.getChildren().add(noUsers);
-              }
-            });
+      while(!closing) {
+        if(input == null && (input = reconnect()) == null) return;
+
+        try {
+          if(input.readInt() == 0) throw new IOException("Server is not accepting connections");
+
+          resumeSession();
 
-            for(User u : whosHere) {
-              if(activeUser != null && activeUser.getAlias().equals(u.getAlias())) continue;
+          while(true) {
+            // A handful of different options here...
+            Object o = input.readObject();
 
-              StackPane uContainer = new StackPane();
-              uContainer.setMinHeight(30);
-              uContainer.setMaxHeight(50);
-              uContainer.setPrefWidth(180);
+            // 1. Shutting down
+            if(o.equals(-1)) return;
+
+            // 2. Fetch the list of online users periodically
+            if(o instanceof HashMap && ((HashMap)o).keySet().contains("online_users")) {
+              List<UserRef> whosHere = (List<UserRef>)((HashMap)o).get("online_users");
+              whosHere.removeIf(u_pred -> !u_pred.isOnline());
+
+              Platform.runLater(() -> {
+                onlineUsers.getChildren().clear();
+                if(activeUser != null && activeUser.getAlias().equals(whosHere.get(0).getAlias()) && whosHere.size() == 1) {
+                  Label noUsers = new Label("Nobody's here :(");
+                  noUsers.setStyle("-fx-padding: 5px 10px 5px 10px;");
+                  onlineUsers.getChildren().add(noUsers);
+                }
+              });
 
-              onlineUsers.setVgrow(uContainer, Priority.ALWAYS);
+              for(UserRef u : whosHere) {
+                if(activeUser != null && activeUser.getAlias().equals(u.getAlias())) continue;
 
-              ImageView addIcon = new ImageView();
-              addIcon.getStyleClass().add("contact-add-btn");
-              addIcon.setStyle("-fx-cursor: null");
+                StackPane uContainer = new StackPane();
+                uContainer.setMinHeight(30);
+                uContainer.setMaxHeight(50);
+                uContainer.setPrefWidth(180);
 
-              if(isContact(activeUser, u)) {
-                addIcon.setImage(new Image("assets/images/circle_check.png", 30, 30, false, true));
-              } else {
-                addIcon.setImage(new Image("assets/images/circle_plus.png", 30, 30, false, true));
+                onlineUsers.setVgrow(uContainer, Priority.ALWAYS);
 
-                addIcon.setOnMouseClicked(addCl -> {
-                  addContact(activeUser, u);
+                ImageView addIcon = new ImageView();
+                addIcon.getStyleClass().add("contact-add-btn");
+                addIcon.setStyle("-fx-cursor: null");
+
+                if(isContact(activeUser, u)) {
                   addIcon.setImage(new Image("assets/images/circle_check.png", 30, 30, false, true));
-                  addIcon.setStyle("-fx-cursor: null");
-                  addIcon.setOnMouseClicked(null);
-                });
-              }
+                } else {
+                  addIcon.setImage(new Image("assets/images/circle_plus.png", 30, 30, false, true));
 
-              uContainer.setAlignment(addIcon, Pos.CENTER_LEFT);
-              uContainer.getChildren().add(addIcon);
+                  addIcon.setOnMouseClicked(addCl -> {
+                    addContact(activeUser, u);
+                    addIcon.setImage(new Image("assets/images/circle_check.png", 30, 30, false, true));
+                    addIcon.setStyle("-fx-cursor: null");
+                    addIcon.setOnMouseClicked(null);
+                  });
+                }
 
-              Label uName = new Label(u.getAlias());
-              uName.getStyleClass().add("listed-user-name");
+                uContainer.setAlignment(addIcon, Pos.CENTER_LEFT);
+                uContainer.getChildren().add(addIcon);
 
-              Label uStatus = createStatusLabel(u);
+                Label uName = new Label(u.getAlias());
+                uName.getStyleClass().add("listed-user-name");
 
-              uContainer.setAlignment(uName, Pos.CENTER_LEFT);
-              uContainer.setAlignment(uStatus, Pos.CENTER_RIGHT);
+                Label uStatus = createStatusLabel(u);
 
-              uContainer.getChildren().addAll(uName, uStatus);
-              uContainer.setPadding(new Insets(5, 3, 5, 3));
+                uContainer.setAlignment(uName, Pos.CENTER_LEFT);
+                uContainer.setAlignment(uStatus, Pos.CENTER_RIGHT);
 
-              uContainer.getStyleClass().add("listed-user");
-              if(onlineUsers != null) {
-                Platform.runLater(() -> onlineUsers.getChildren().add(uContainer));
+                uContainer.getChildren().addAll(uName, uStatus);
+                uContainer.setPadding(new Insets(5, 3, 5, 3));
+
+                uContainer.getStyleClass().add("listed-user");
+                if(onlineUsers != null) {
+                  Platform.runLater(() -> onlineUsers.getChildren().add(uContainer));
+                }
               }
+
+              continue;
             }
 
-            continue;
-          }
+            // The server throttled a request; history can simply be asked for again on the next scroll
+            if(o instanceof HashMap && ((HashMap)o).keySet().contains("throttled")) {
+              System.out.println("Throttled by the server for " + ((HashMap)o).get("throttled") + "ms");
+              Platform.runLater(() -> loadingHistory = false);
+              continue;
+            }
 
-          // 3. Update when a user is typing
-          if(o instanceof HashMap && ((HashMap)o).keySet().contains("user_typing")) {
-            receivingInput = true;
-            continue;
-          }
+            if(o instanceof HashMap && ((HashMap)o).keySet().contains("heartbeat")) continue;
 
-          // 4. Get incoming chat message and output to chat stage
-          if(messagesContainer != null && messagesContainer.getChildren().contains(typing)) {
-            receivingInput = false;
-            Platform.runLater(() -> messagesContainer.getChildren().remove(typing));
-          }
+            if(o instanceof AuthResult) {
+              // Every successful login or resume comes with a fresh token; the one it replaced no longer works
+              if(((AuthResult)o).getToken() != null) saveToken(((AuthResult)o).getToken());
+
+              CompletableFuture<AuthResult> pending = pendingAuth.remove(((AuthResult)o).getRequestId());
+              if(pending != null) pending.complete((AuthResult)o);
+              continue;
+            }
+
+            if(o instanceof HashMap && ((HashMap)o).keySet().contains("top_rooms")) {
+              CompletableFuture<List<Integer>> ranked = pendingRankings.get((String)((HashMap)o).get("top_rooms"));
+              if(ranked == null) continue;
+
+              List<Integer> ids = new ArrayList<>();
+              for(Object id : (List<?>)((HashMap)o).get("rooms"))
+                if(id instanceof Integer) ids.add((Integer)id);
+
+              ranked.complete(ids);
+              continue;
+            }
+
+            // 3. Update when a user is typing
+            if(o instanceof HashMap && ((HashMap)o).keySet().contains("user_typing")) {
+              receivingInput = true;
+              continue;
+            }
+
+            // 4. Receive a page of chat history
+            if(o instanceof HistoryPage) {
+              showHistory((HistoryPage)o);
+              continue;
+            }
+
+            // 5. Get incoming chat message and output to chat stage
+            if(messagesContainer != null && messagesContainer.getChildren().contains(typing)) {
+              receivingInput = false;
+              Platform.runLater(() -> messagesContainer.getChildren().remove(typing));
+            }
 
-          String message = (String)o;
+            if(o instanceof ChatAck) {
+              reconcileSend((ChatAck)o);
+              continue;
+            }
+
+            if(o instanceof ChatEntry) {
+              ChatEntry entry = (ChatEntry)o;
+
+              Long seen = lastSeen.get(entry.getChatRoom());
+              if(entry.getSequence() > 0 && seen != null && entry.getSequence() <= seen) continue;
+              lastSeen.merge(entry.getChatRoom(), entry.getSequence(), Math::max);
+
+              Set<Long> live = catchingUp.get(entry.getChatRoom());
+              if(live != null) live.add(entry.getSequence());
+
+              if(activeUser != null && entry.getChatRoom() == activeUser.getLatestRoom())
+                outputMessage(entry.getName() + ": " + entry.getMessage());
+
+              continue;
+            }
+
+            String message = (String)o;
 
-          outputMessage(message);
+            outputMessage(message);
+          }
+        } catch(IOException | ClassNotFoundException ex) {
+          if(closing) return;
+
+          System.out.println(ex);
+          input = reconnect();
+          if(input == null) return;
         }
-      } catch(IOException | ClassNotFoundException ex) {
-        ex.printStackTrace();
       }
     }
   }
+
+  static class PendingMessage {
+    final ChatEntry entry;
+    final Label label;
+    final long sentAt = System.nanoTime();
+
+    PendingMessage(ChatEntry entry, Label label) {
+      this.entry = entry;
+      this.label = label;
+    }
+  }
 }
@@ -16,16 +16,23 @@
  *
  */
 
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntPredicate;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import com.sun.net.httpserver.HttpServer;
 import javafx.application.Application;
 import javafx.application.Platform;
 import javafx.stage.Stage;
@@ -34,24 +41,70 @@ import javafx.scene.control.TextArea;
 import javafx.scene.image.Image;
 
 public class MessgrServer extends Application {
+  private static final int HISTORY_CHUNK = 50;
+  private static final int HISTORY_MAX_PAGE = 500;
+  private static final int INSERT_BATCH = 100;
+  private static final int STATUS_BATCH = 500;
+  private static final int ADMIN_ROOMS = 20;
+  private static final int SEARCH_DEFAULT = 20;
+  private static final int SEARCH_MAX = 100;
+  private static final long METRICS_INTERVAL = TimeUnit.MINUTES.toNanos(1);
+
   public TextArea display;
-  protected HashMap<Socket, ObjectOutputStream> users;
+  protected SessionRegistry<HandleClient> sessions;
 
   private Thread connectionThread, userUpdateThread;
-  private ArrayList<Thread> clientThreads;
-  private List<User> onlineUsers;
+  private IdleReaper reaper;
+  private long writeTimeout;
+  private ConcurrentHashMap<String, UserRef> onlineUsers;
+
+  private ConcurrentHashMap<Integer, RoomActor<HandleClient>> rooms;
+  private ExecutorService roomWorkers, outboxWorkers;
+  private final LongAdder queuedMessages = new LongAdder();
+  private final LongAdder overflowedClients = new LongAdder();
+  private LoadController load;
+  private AdmissionController admission;
+  private AuthService auth;
+  private SessionTokens tokens;
+  private RoomCounters counters;
+  private RoomRanking ranking;
+  private RoomDirectory directory;
+  private HttpServer admin;
+  private ChatSearchIndex searchIndex;
+  private final HashMap<Integer, Long> indexedUpTo = new HashMap<>();
 
   private ServerSocket serv;
-  private ScheduledExecutorService usersUpdate;
+  private ScheduledExecutorService usersUpdate, timer, database;
+  private EventRing<RoomEvent> pipeline;
+  private ForkJoinPool fanOutPool;
+  private int parallelFanOut, fanOutPartition, outboxMaxDepth;
 
   private Connection connection;
+  private Properties config = new Properties();
+  private ChatLog chatLog;
+  private MessageIdGenerator messageIds;
+  private DedupeWindow recentSubmissions;
+
+  private PreparedStatement chatInsert;
+  private int pendingInserts;
+
+  private final LatencyHistogram deliveryLatency = new LatencyHistogram("delivery");
+  private long chatsSinceReport, eventsSinceReport, lastReport = System.nanoTime();
 
   @Override
   public void start(Stage appStage) {
     display = new TextArea();
-    users = new HashMap<>();
-    clientThreads = new ArrayList<>();
-    onlineUsers = Collections.synchronizedList(new ArrayList<User>());
+    sessions = new SessionRegistry<>();
+    onlineUsers = new ConcurrentHashMap<>();
+
+    rooms = new ConcurrentHashMap<>();
+    roomWorkers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    // Cancelled roster updates must not pile up in the shared timer's queue as clients come and go
+    ScheduledThreadPoolExecutor sharedTimer = new ScheduledThreadPoolExecutor(1);
+    sharedTimer.setRemoveOnCancelPolicy(true);
+    timer = sharedTimer;
+    // Periodic database writes get a thread of their own, so a slow round trip never delays the timer's ticks
+    database = Executors.newSingleThreadScheduledExecutor();
 
     display.setEditable(false);
 
@@ -62,6 +115,33 @@ public class MessgrServer extends Application {
     appStage.show();
 
     dbSetup();
+    directory = new RoomDirectory(connection);
+    directory.load();
+    chatLogSetup();
+    pipelineSetup();
+
+    load = new LoadController(config, queuedMessages::sum, pipeline::getBacklog, this::log);
+    load.start(timer);
+
+    admission = new AdmissionController(config);
+    auth = new AuthService(connection, config, this::log);
+    tokens = new SessionTokens(config, this::log);
+    timer.scheduleAtFixedRate(tokens::prune, 1, 1, TimeUnit.HOURS);
+
+    counters = new RoomCounters(connection, config);
+    counters.start(database);
+    ranking = new RoomRanking(directory, config);
+    adminSetup();
+
+    // Clients send a heartbeat every heartbeat.interval_seconds, so one that stays silent much longer is gone
+    long heartbeat = Long.parseLong(config.getProperty("heartbeat.interval_seconds", "10"));
+    long idleTimeout = TimeUnit.SECONDS.toMillis(Long.parseLong(config.getProperty("heartbeat.idle_timeout_seconds", "35")));
+    reaper = new IdleReaper(sessions, idleTimeout);
+    reaper.start(timer, heartbeat, TimeUnit.SECONDS);
+
+    // Sockets have no write timeout, so a writer stuck on a client that stopped reading is freed by closing it
+    writeTimeout = Long.parseLong(config.getProperty("outbox.write_timeout_ms", "5000"));
+    timer.scheduleAtFixedRate(this::reapStalledWriters, 1, 1, TimeUnit.SECONDS);
 
     connectionThread = new Thread(new Runnable() {
 
@@ -75,11 +155,14 @@ public class MessgrServer extends Application {
           while(true) {
             Socket user = serv.accept();
 
+            if(!admission.admit(user.getInetAddress().getHostAddress())) {
+              refuse(user);
+              continue;
+            }
+
             Platform.runLater(() -> display.appendText(new Date() + ": User @" + user.getInetAddress().getHostAddress() + " has connected\n"));
 
-            Thread t = new Thread(new HandleClient(user));
-            clientThreads.add(t);
-            t.start();
+            new Thread(new HandleClient(user)).start();
           }
         } catch(Exception ex) {
           if(!ex.getLocalizedMessage().equals("Socket closed"))
@@ -93,24 +176,7 @@ public class MessgrServer extends Application {
       @Override
       public void run() {
         usersUpdate = Executors.newSingleThreadScheduledExecutor();
-        usersUpdate.scheduleAtFixedRate(() -> {
-          if(!onlineUsers.isEmpty()) {
-            for(int i = 0; i < onlineUsers.size(); i++) {
-              User u = onlineUsers.get(i);
-              try {
-                PreparedStatement stmt = connection.prepareStatement("SELECT * FROM Users WHERE alias = ?");
-                stmt.setString(1, u.getAlias());
-
-                ResultSet r = stmt.executeQuery();
-                if(r.next()) {
-                  User newU = new User(r.getString("alias"));
-                  onlineUsers.set(i, newU);
-                }
-              } catch (SQLException ex) { System.out.println(ex); }
-
-            }
-          }
-        }, 0, 3, TimeUnit.SECONDS);
+        usersUpdate.scheduleAtFixedRate(() -> refreshStatuses(), 0, 3, TimeUnit.SECONDS);
       }
     });
 
@@ -127,8 +193,22 @@ public class MessgrServer extends Application {
       System.out.println(ex);
     }
 
-    for(Thread t : clientThreads)
-    t = null;
+    roomWorkers.shutdown();
+    if(auth != null) auth.shutdown();
+    if(load != null) load.stop();
+    if(reaper != null) reaper.stop();
+    if(counters != null) counters.stop();
+    if(admin != null) admin.stop(0);
+    if(searchIndex != null) searchIndex.shutdown();
+    timer.shutdown();
+    database.shutdown();
+    if(outboxWorkers != null) outboxWorkers.shutdown();
+    if(pipeline != null) pipeline.stop();
+    if(fanOutPool != null) fanOutPool.shutdown();
+    for(SessionRegistry.Session<HandleClient> s : sessions.all())
+    s.getTransport().close(false);
+
+    if(chatLog != null) chatLog.close();
 
     connectionThread = null;
     userUpdateThread = null;
@@ -136,6 +216,43 @@ public class MessgrServer extends Application {
     Platform.exit();
   }
 
+  private void log(String line) {
+    Platform.runLater(() -> display.appendText(new Date() + ": " + line + "\n"));
+  }
+
+  /**
+   * Tells a client over the connection caps that it isn't being served, so it backs off instead of waiting on a
+   * connection nobody reads.
+   */
+  private void refuse(Socket user) {
+    try {
+      ObjectOutputStream out = new ObjectOutputStream(user.getOutputStream());
+      out.writeInt(0);
+      out.flush();
+
+      user.close();
+    } catch(IOException ex) {
+      System.out.println(ex);
+    }
+  }
+
+  /**
+   * Closes the connections whose outbox has been writing one batch for longer than <i>outbox.write_timeout_ms</i>,
+   * which also frees the outbox worker blocked on the socket. Runs on the shared timer.
+   */
+  private void reapStalledWriters() {
+    for(SessionRegistry.Session<HandleClient> s : sessions.all()) {
+      HandleClient c = s.getTransport();
+      Outbox o = c.outbox;
+
+      if(o != null && o.getWritingMillis() > writeTimeout) {
+        overflowedClients.increment();
+        log("User @" + c.ip + " took longer than " + writeTimeout + "ms to take a write and was disconnected");
+        c.close(false);
+      }
+    }
+  }
+
   private void dbSetup() {
     Properties prop = new Properties();
     InputStream input = null;
@@ -144,6 +261,7 @@ public class MessgrServer extends Application {
       input = new FileInputStream("config.properties");
 
       prop.load(input);
+      config = prop;
 
       String db = prop.getProperty("db"),
       user = prop.getProperty("username"),
@@ -164,138 +282,823 @@ public class MessgrServer extends Application {
     }
   }
 
-  class HandleClient implements Runnable {
+  /**
+   * Opens the {@link ChatLog ChatLog} that stores every chat line.
+   */
+  private void chatLogSetup() {
+
+    messageIds = new MessageIdGenerator(Integer.parseInt(config.getProperty("node_id", "0")));
+    recentSubmissions = DedupeWindow.open(config);
+
+    try {
+      chatLog = ChatLog.open(config);
+    } catch(Exception ex) {
+      System.out.println(ex);
+    }
+  }
+
+  /**
+   * Starts the {@link EventRing EventRing} that everything a room sends out passes through once, and the pool that
+   * writes client {@link Outbox outboxes} to their sockets. Fan-out and metrics always run as stages of the ring; MySQL is written to by a stage of its own, and only when
+   * <i>chatlog.mysql_sink</i> is enabled in the configuration or the chat log could not be opened. With a chat log, an
+   * index stage also feeds every chat line to the {@link ChatSearchIndex ChatSearchIndex}, which is first rebuilt from
+   * the log in the background. The MySQL and index stages are detached, so a slow database or index never holds up
+   * the rooms: each gets its chat lines through a queue of <i>pipeline.handoff_size</i>, and lines that don't fit are
+   * dropped and counted in the report. The index reads the lines it missed back from the chat log.
+   */
+  private void pipelineSetup() {
+    pipeline = new EventRing<>(Integer.parseInt(config.getProperty("pipeline.ring_size", "16384")), RoomEvent::new);
+
+    parallelFanOut = Integer.parseInt(config.getProperty("fanout.parallel_threshold", "512"));
+    fanOutPartition = Math.max(1, Integer.parseInt(config.getProperty("fanout.partition_size", "128")));
+    fanOutPool = new ForkJoinPool(Integer.parseInt(config.getProperty("fanout.parallelism", String.valueOf(Runtime.getRuntime().availableProcessors()))));
+    outboxWorkers = Executors.newFixedThreadPool(Integer.parseInt(config.getProperty("outbox.writers", String.valueOf(2 * Runtime.getRuntime().availableProcessors()))));
+    outboxMaxDepth = Integer.parseInt(config.getProperty("outbox.max_depth", "5000"));
+
+    int handOff = Integer.parseInt(config.getProperty("pipeline.handoff_size", "65536"));
+
+    pipeline.addStage("fanout", (e, seq, endOfBatch) -> fanOut(e));
+    pipeline.addStage("metrics", (e, seq, endOfBatch) -> measure(e, endOfBatch));
+
+    if(Boolean.parseBoolean(config.getProperty("chatlog.mysql_sink", "true")) || chatLog == null) {
+      pipeline.addDetachedStage("mysql", e -> e.entry, handOff, (entry, seq, endOfBatch) -> persistChat(entry, endOfBatch));
+    }
+
+    if(chatLog != null) {
+      searchIndex = new ChatSearchIndex(config);
+      searchIndex.rebuild(chatLog);
+      timer.scheduleAtFixedRate(() -> searchIndex.prune(chatLog), 10, 10, TimeUnit.MINUTES);
+      pipeline.addDetachedStage("index", e -> e.entry, handOff, (entry, seq, endOfBatch) -> indexChat(entry));
+    }
+
+    pipeline.start();
+  }
+
+  /**
+   * Serves room statistics over HTTP on <i>admin.port</i>, to the local machine only. <i>/rooms</i> lists the busiest
+   * rooms by messages per second with the trending ranking, and <i>/rooms?id=N</i> shows one room. A port of 0 turns
+   * it off.
+   */
+  private void adminSetup() {
+    int port = Integer.parseInt(config.getProperty("admin.port", "8082"));
+    if(port == 0) return;
+
+    try {
+      admin = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+      admin.createContext("/rooms", exchange -> {
+        String query = exchange.getRequestURI().getQuery();
+        StringBuilder body = new StringBuilder();
+
+        if(query != null && query.matches("id=\\d{1,9}")) {
+          RoomActor<HandleClient> r = rooms.get(Integer.parseInt(query.substring(3)));
+          body.append(r != null ? r.getActivity() + ", " + r.getMemberCount() + " members" : "no such room").append('\n');
+        } else {
+          List<RoomActivity> busiest = new ArrayList<>();
+          for(RoomActor<HandleClient> r : rooms.values()) busiest.add(r.getActivity());
+          busiest.sort(Comparator.comparingDouble(RoomActivity::getMessagesPerSecond).reversed());
+
+          for(RoomActivity a : busiest.subList(0, Math.min(ADMIN_ROOMS, busiest.size()))) body.append(a).append('\n');
+          body.append("trending: ").append(ranking.top(RoomRanking.ALL)).append('\n');
+        }
+
+        byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(200, bytes.length);
+        try(OutputStream out = exchange.getResponseBody()) {
+          out.write(bytes);
+        }
+      });
+      admin.start();
+    } catch(IOException | NumberFormatException ex) {
+      System.out.println(ex);
+    }
+  }
+
+  /**
+   * Writes an event to its recipients. Rooms with at least <i>fanout.parallel_threshold</i> recipients are split into
+   * partitions written in parallel on the fan-out pool; the stage waits for all of them before moving on, so every
+   * connection still receives events in the order they were published.
+   */
+  private void fanOut(RoomEvent e) {
+    if(e.recipients.size() >= parallelFanOut) {
+      fanOutPool.invoke(new FanOut(e, 0, e.recipients.size()));
+    } else {
+      for(HandleClient member : e.recipients) {
+        if(member != e.sender) member.send(e.traffic, e.message, false);
+      }
+    }
+
+    long took = System.nanoTime() - e.publishedAt;
+    e.activity.recordFanOut(took);
+    if(e.entry != null) deliveryLatency.record(took);
+  }
+
+  private void measure(RoomEvent e, boolean endOfBatch) {
+    eventsSinceReport++;
+    if(e.entry != null) chatsSinceReport++;
+
+    long now = System.nanoTime();
+    if(!endOfBatch || now - lastReport < METRICS_INTERVAL) return;
+
+    String report = new Date() + ": " + chatsSinceReport + " messages, " + eventsSinceReport + " events in the last minute, delivery p99 "
+      + deliveryLatency.percentile(99) + "us, ring backlog " + pipeline.getBacklog() + ", " + load + ", "
+      + pipeline.getDropped("mysql") + " inserts and " + pipeline.getDropped("index") + " index updates dropped, "
+      + admission.getConnections() + " connections, " + admission.getRefused() + " refused, " + admission.getThrottled() + " throttled, " + overflowedClients.sum() + " dropped for falling behind, auth queue p99 "
+      + auth.getQueueWait().percentile(99) + "us, hash p99 " + auth.getHashTime().percentile(99) + "us, " + auth.getTurnedAway() + " logins turned away\n";
+    Platform.runLater(() -> display.appendText(report));
+
+    chatsSinceReport = 0;
+    eventsSinceReport = 0;
+    deliveryLatency.reset();
+    auth.getQueueWait().reset();
+    auth.getHashTime().reset();
+    lastReport = now;
+  }
+
+  /**
+   * Adds a chat line to the pending insert batch, which is written once the stage has no more chat lines waiting or the
+   * batch is full. Only called from the MySQL stage of the pipeline.
+   */
+  private void persistChat(ChatEntry entry, boolean endOfBatch) {
+    try {
+      if(entry != null) {
+        if(chatInsert == null) chatInsert = connection.prepareStatement("INSERT INTO Chats (chat_id, chatroom_id, alias, message, ip) VALUES (?, ?, ?, ?, ?)");
+
+        // Zero-padded so the ids keep their time order as strings and inserts land at the end of the primary key
+        chatInsert.setString(1, String.format("%019d", entry.getId()));
+        chatInsert.setInt(2, entry.getChatRoom());
+        chatInsert.setString(3, entry.getName());
+        chatInsert.setString(4, entry.getMessage());
+        chatInsert.setString(5, entry.getSourceIP());
+        chatInsert.addBatch();
+        pendingInserts++;
+      }
+
+      if(pendingInserts > 0 && (endOfBatch || pendingInserts >= INSERT_BATCH)) {
+        pendingInserts = 0;
+        chatInsert.executeBatch();
+      }
+    } catch(SQLException ex) {
+      System.out.println(ex);
+      chatInsert = null;
+      pendingInserts = 0;
+    }
+  }
+
+  /**
+   * Adds a chat line to the search index, first reading back from the chat log any lines of the room that were dropped
+   * while the index stage was behind. Only called from the index stage of the pipeline.
+   */
+  private void indexChat(ChatEntry entry) {
+    Long last = indexedUpTo.put(entry.getChatRoom(), entry.getSequence());
+
+    if(last != null && entry.getSequence() > last + 1) {
+      for(ChatEntry missed : chatLog.read(entry.getChatRoom(), last + 1, (int)Math.min(Integer.MAX_VALUE, entry.getSequence() - last - 1))) {
+        if(missed.getSequence() < entry.getSequence()) searchIndex.add(missed);
+      }
+    }
+
+    searchIndex.add(entry);
+  }
+
+  /**
+   * Reads the status of every online user in as few queries as possible and swaps in a fresh reference for each one
+   * that changed. Aliases that went offline meanwhile are left out rather than added back.
+   */
+  private void refreshStatuses() {
+    List<String> aliases = new ArrayList<>(onlineUsers.keySet());
+
+    for(int from = 0; from < aliases.size(); from += STATUS_BATCH) {
+      List<String> batch = aliases.subList(from, Math.min(from + STATUS_BATCH, aliases.size()));
+
+      try {
+        PreparedStatement stmt = connection.prepareStatement("SELECT alias, status FROM Users WHERE alias IN (" + String.join(", ", Collections.nCopies(batch.size(), "?")) + ")");
+        for(int i = 0; i < batch.size(); i++) stmt.setString(i + 1, batch.get(i));
+
+        ResultSet r = stmt.executeQuery();
+        while(r.next()) {
+          UserRef latest = UserRef.of(r.getString("alias"), UserStatus.parse(r.getString("status")));
+          onlineUsers.computeIfPresent(latest.getAlias(), (a, u) -> latest);
+        }
+      } catch(SQLException ex) { System.out.println(ex); }
+    }
+  }
+
+  /**
+   * Returns the actor of a room, starting it the first time the room is used, or null if there is no such room, so ids
+   * made up by a client never get an actor of their own.
+   */
+  private RoomActor<HandleClient> room(int id) {
+    RoomActor<HandleClient> r = rooms.get(id);
+    if(r != null || directory.get(id) == null) return r;
+
+    return rooms.computeIfAbsent(id, i -> new RoomActor<>(i, roomWorkers));
+  }
+
+  /**
+   * Publishes a message for every member of a room except the one it came from, unless the load controller is
+   * shedding its traffic class. The fan-out stage of the pipeline does the writing, so a room is never held up by its
+   * slowest member. Must run inside the room's actor, which keeps a room's messages in the ring in the order the room
+   * produced them.
+   */
+  private void broadcast(RoomActor<HandleClient> room, TrafficClass traffic, Object message, HandleClient from) {
+    if(load.admit(traffic, room.getActivity())) publish(room, traffic, message, null, from);
+  }
+
+  private void publish(RoomActor<HandleClient> room, TrafficClass traffic, Object message, ChatEntry entry, HandleClient from) {
+    List<HandleClient> recipients = room.getMemberSnapshot();
+    long now = System.nanoTime();
+
+    pipeline.publish(e -> {
+      e.traffic = traffic;
+      e.message = message;
+      e.entry = entry;
+      e.sender = from;
+      e.recipients = recipients;
+      e.activity = room.getActivity();
+      e.publishedAt = now;
+    });
+  }
+
+  /**
+   * Stores a chat line and delivers it to the room. Runs inside the room's actor, so sequence numbers are handed out
+   * and delivered in the same order to everyone in the room.
+   */
+  private void postChat(RoomActor<HandleClient> room, ChatEntry entry, HandleClient from) {
+    // A resent message that was already accepted just gets its original acknowledgement again
+    long[] accepted = entry.getClientId() != 0 ? recentSubmissions.lookup(entry.getName(), entry.getClientId()) : null;
+    if(accepted != null) {
+      entry.setId(accepted[0]);
+      entry.setSequence(accepted[1]);
+
+      from.send(ChatAck.accepted(entry));
+      return;
+    }
+
+    entry.setId(messageIds.nextId());
+
+    if(chatLog != null) {
+      try {
+        chatLog.append(entry);
+      } catch(IOException ex) {
+        System.out.println(ex);
+
+        from.send(ChatAck.rejected(entry, "The message could not be stored"));
+        return;
+      }
+    }
+
+    if(entry.getClientId() != 0)
+      recentSubmissions.record(entry.getName(), entry.getClientId(), entry.getId(), entry.getSequence());
+
+    // The sender already shows the message, so it only needs to learn the id and sequence it was given
+    from.send(ChatAck.accepted(entry));
+
+    room.getActivity().recordMessage(entry.getName());
+    ranking.message(room.getId(), entry.getName());
+    room.remember(entry);
+    publish(room, TrafficClass.CHAT, entry.forDelivery(), entry, from);
+  }
+
+  /**
+   * Writes an event to a range of its recipients, halving the range until it is no larger than a partition so idle
+   * workers of the fan-out pool can steal the other halves.
+   */
+  class FanOut extends RecursiveAction {
+    private static final long serialVersionUID = 5802213364179L;
+
+    private final RoomEvent e;
+    private final int from, to;
+
+    FanOut(RoomEvent e, int from, int to) {
+      this.e = e;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if(to - from > fanOutPartition) {
+        int mid = (from + to) >>> 1;
+        invokeAll(new FanOut(e, from, mid), new FanOut(e, mid, to));
+        return;
+      }
+
+      for(int i = from; i < to; i++) {
+        HandleClient member = e.recipients.get(i);
+        if(member != e.sender) member.send(e.traffic, e.message, false);
+      }
+    }
+  }
+
+  /**
+   * A slot of the pipeline. <i>entry</i> is the stored chat line for chat messages and null for everything else a room
+   * sends out, such as notices and typing indicators.
+   */
+  static class RoomEvent {
+    TrafficClass traffic;
+    Object message;
+    ChatEntry entry;
+    HandleClient sender;
+    List<HandleClient> recipients;
+    RoomActivity activity;
+    long publishedAt;
+  }
+
+  class HandleClient implements Runnable, IdleReaper.Peer {
     Socket s;
 
+    private final String ip;
+    private final SessionRegistry.Session<HandleClient> session;
+    private final AdmissionController.Session limits = admission.newSession();
+    private ObjectOutputStream toClient;
+    private volatile Outbox outbox;
+    private volatile UserRef user;
+    private volatile String authenticated, token;
+    private volatile RoomActor<HandleClient> room;
+    private volatile ScheduledFuture<?> rosterUpdates;
+    private long rosterTicks;
+    private volatile long lastHeard = System.currentTimeMillis();
+    private final AtomicBoolean closed = new AtomicBoolean();
+
     public HandleClient(Socket socket) {
       this.s = socket;
+      this.ip = socket.getInetAddress().getHostAddress();
+      this.session = sessions.open(this);
     }
 
     public void run() {
       try {
-        ObjectInputStream fromClient = new ObjectInputStream(s.getInputStream());
-        ObjectOutputStream toClient = new ObjectOutputStream(s.getOutputStream());
-
-        ScheduledExecutorService whosHereUpdate = Executors.newSingleThreadScheduledExecutor();
-
-        users.put(this.s, toClient);
+        CountingInputStream bytesFromClient = new CountingInputStream(s.getInputStream());
+        ObjectInputStream fromClient = new ObjectInputStream(bytesFromClient);
+        long bytesRead = 0;
+        toClient = new ObjectOutputStream(s.getOutputStream());
 
         toClient.writeInt(1);
         toClient.flush();
 
+        outbox = new Outbox(outboxWorkers, new Outbox.Writer() {
+          public void write(Object message, boolean reset) throws IOException {
+            toClient.writeObject(message);
+            if(reset) toClient.reset();
+          }
+
+          public void flush() throws IOException {
+            toClient.flush();
+          }
+        }, queuedMessages, outboxMaxDepth, () -> {
+          // Closing the socket also frees a writer blocked on it
+          overflowedClients.increment();
+          log("User @" + ip + " fell " + outboxMaxDepth + " messages behind and was disconnected");
+          close(false);
+        });
+
         while(true) {
           Object o = fromClient.readObject();
 
+          long bytes = bytesFromClient.getCount() - bytesRead;
+          bytesRead += bytes;
+          lastHeard = System.currentTimeMillis();
+
+          if(isThrottled(o, bytes)) continue;
+
           if(o instanceof HashMap && ((HashMap)o).keySet().contains("quit")) {
-            Platform.runLater(() -> display.appendText(new Date() + ": User @" + this.s.getInetAddress().getHostAddress() + " has disconnected\n"));
-            users.remove(this.s);
-            if(!whosHereUpdate.isShutdown()) whosHereUpdate.shutdown();
-            if(((HashMap)o).get("quit") != null) {
-              onlineUsers.removeIf(u -> u.getAlias().equals(((User)((HashMap)o).get("quit")).getAlias()));
-
-              String disconnectMessage = ((User)((HashMap)o).get("quit")).getAlias() + " has left the session";
-              writeMessageToUsers(disconnectMessage, this.s);
-            }
-            toClient.writeObject(new Integer(-1));
-            toClient.flush();
+            send(new Integer(-1));
+            close(true);
             return;
           }
 
+          if(o instanceof AuthRequest) {
+            AuthRequest req = (AuthRequest)o;
+
+            if(req.isResume()) {
+              // A token is checked right here; it's cheap, and the login that follows it must see the result. It is
+              // used up in the same step, so a replayed copy of it can't log in a second connection
+              String alias = tokens.consume(req.getToken());
+
+              send(alias != null ? authenticate(AuthResult.accepted(req, alias)) : AuthResult.rejected(req, "Your session has expired. Log in again."));
+            } else {
+              // Answered from the auth pool when the hash is done, so this thread keeps reading meanwhile
+              auth.submit(req).thenAccept(r -> send(r.isAccepted() ? authenticate(r) : r));
+            }
+            continue;
+          }
+
+          if(o instanceof HashMap && ((HashMap)o).keySet().contains("heartbeat")) {
+            send(o);
+            continue;
+          }
+
           if(o instanceof HashMap && ((HashMap)o).keySet().contains("login_success")) {
             Platform.runLater(() -> display.appendText(new Date() + ": User @" + this.s.getInetAddress().getHostAddress() + " has joined the session\n"));
 
-            String connectMessage = ((User)((HashMap)o).get("login_success")).getAlias() + " has joined the session";
-            writeMessageToUsers(connectMessage, this.s);
-
-            onlineUsers.add((User)((HashMap)o).get("login_success"));
-            // Run ScheduledExecutorService to update "Who's Online" list continuously
-            if(whosHereUpdate.isShutdown()) whosHereUpdate = Executors.newSingleThreadScheduledExecutor();
-
-            whosHereUpdate.scheduleAtFixedRate(() -> {
-              HashMap<String, List<User>> whosHere = new HashMap<>();
-
-              // Get the users with the same room id as this user
-              List<User> usersInRoom = new ArrayList<>();
-              for(User us : onlineUsers) {
-                if(us.getLatestRoom() == ((User)((HashMap)o).get("login_success")).getLatestRoom())
-                  usersInRoom.add(us);
-              }
-              whosHere.put("online_users", usersInRoom);
-              try {
-                toClient.reset();
-                toClient.writeObject(whosHere);
-                toClient.flush();
-              } catch(IOException ex) {
-                System.out.println(ex);
-              }
+            UserRef u = (UserRef)((HashMap)o).get("login_success");
+            if(u == null || !u.getAlias().equals(authenticated)) {
+              log("User @" + ip + " tried to log in as " + (u != null ? u.getAlias() : null) + " without authenticating");
+              continue;
+            }
+
+            user = u;
+            onlineUsers.put(user.getAlias(), user);
+            sessions.login(session, user.getAlias());
+
+            Integer lastRoom = (Integer)((HashMap)o).get("room");
+            joinRoom(lastRoom != null ? lastRoom : 0, user.getAlias() + " has joined the session");
+
+            // Update the "Who's Online" list continuously from the shared timer
+            cancelRosterUpdates();
+            rosterUpdates = timer.scheduleAtFixedRate(() -> {
+              RoomActor<HandleClient> r = room;
+              if(r != null && load.admit(TrafficClass.ROSTER, rosterTicks++)) r.tell(() -> sendRoster(r));
             }, 5, 5, TimeUnit.SECONDS);
 
             continue;
           }
 
+          if(o instanceof HashMap && ((HashMap)o).keySet().contains("join_room")) {
+            Object id = ((HashMap)o).get("join_room");
+            if(!(id instanceof Integer) || !joinRoom((Integer)id, null))
+              log("User @" + ip + " could not join room " + id);
+            continue;
+          }
+
           if(o instanceof HashMap && ((HashMap)o).keySet().contains("user_typing")) {
-            writeMessageToUsers(o, this.s);
+            RoomActor<HandleClient> r = room;
+            UserRef u = user;
+            if(r != null && u != null) {
+              r.getActivity().recordTyping(u.getAlias());
+              r.tell(() -> broadcast(r, TrafficClass.TYPING, o, this));
+            }
+            continue;
+          }
+
+          if(o instanceof HashMap && ((HashMap)o).keySet().contains("top_rooms")) {
+            String category = (String)((HashMap)o).get("top_rooms");
+
+            HashMap<String, Object> topRooms = new HashMap<>();
+            topRooms.put("top_rooms", category);
+            topRooms.put("rooms", ranking.top(category));
+            send(topRooms);
+            continue;
+          }
+
+          if(o instanceof HashMap && ((HashMap)o).keySet().contains("search_request")) {
+            sendSearchResults((HashMap<?, ?>)o);
+            continue;
+          }
+
+          if(o instanceof HashMap && ((HashMap)o).keySet().contains("history_request")) {
+            sendHistory((HashMap<?, ?>)o);
+            continue;
+          }
+
+          if(o instanceof HashMap && ((HashMap)o).keySet().contains("resume")) {
+            // A reconnecting client sends the last sequence it saw in each room and only gets what it missed
+            Object lastSeen = ((HashMap)o).get("resume");
+            if(!(lastSeen instanceof Map)) continue;
+
+            for(Map.Entry<?, ?> seen : ((Map<?, ?>)lastSeen).entrySet()) {
+              if(!(seen.getKey() instanceof Integer) || !(seen.getValue() instanceof Long) || !canAccess((Integer)seen.getKey())) continue;
+
+              RoomActor<HandleClient> r = room((Integer)seen.getKey());
+              long after = (Long)seen.getValue();
+              r.tell(() -> sendMissed(r, after));
+            }
             continue;
           }
 
           if(o instanceof HashMap && ((HashMap)o).keySet().contains("logout_success")) {
             Platform.runLater(() -> display.appendText(new Date() + ": User @" + this.s.getInetAddress().getHostAddress() + " has left the session\n"));
-            onlineUsers.removeIf(u -> u.getAlias().equals(((User)((HashMap)o).get("logout_success")).getAlias()));
-            whosHereUpdate.shutdown();
+            String alias = ((UserRef)((HashMap)o).get("logout_success")).getAlias();
+            sessions.logout(session);
+            goOffline(alias);
 
-            String disconnectMessage = ((User)((HashMap)o).get("logout_success")).getAlias() + " has left the session";
-            writeMessageToUsers(disconnectMessage, this.s);
+            if(token != null) tokens.revoke(token);
+            authenticated = null;
+            token = null;
+            cancelRosterUpdates();
+
+            leaveRoom(alias + " has left the session");
+            user = null;
             continue;
           }
 
           ChatEntry mObject = (ChatEntry)o;
-          String message = mObject.getName() + ": " + mObject.getMessage();
 
-          writeMessageToUsers(message, this.s);
+          if(authenticated == null || !authenticated.equals(mObject.getName())) {
+            send(ChatAck.rejected(mObject, "not logged in"));
+            continue;
+          }
 
-          try {
-            PreparedStatement stmt = connection.prepareStatement("INSERT INTO Chats (chat_id, chatroom_id, alias, message, ip) VALUES (?, ?, ?, ?, ?)");
-            stmt.setString(1, UUID.randomUUID().toString());
-            stmt.setInt(2, mObject.getChatRoom());
-            stmt.setString(3, mObject.getName());
-            stmt.setString(4, mObject.getMessage());
-            stmt.setString(5, mObject.getSourceIP());
+          if(!canAccess(mObject.getChatRoom())) {
+            send(ChatAck.rejected(mObject, "no such room"));
+            continue;
+          }
 
-            stmt.executeUpdate();
-          } catch(SQLException ex) {
-            System.out.println(ex);
+          long wait = admission.checkRoom(limits, directory.get(mObject.getChatRoom()), bytes);
+          if(wait > 0) {
+            send(ChatAck.throttled(mObject, wait));
+            continue;
           }
 
-          toClient.writeObject(message);
-          toClient.flush();
+          RoomActor<HandleClient> r = room(mObject.getChatRoom());
+          r.tell(() -> postChat(r, mObject, this));
         }
       } catch(IOException | ClassNotFoundException ex) {
-        ex.printStackTrace();
+        if(!closed.get()) System.out.println(ex);
+      } finally {
+        close(false);
       }
     }
-  }
 
-  private void writeMessageToUsers(Object message, Socket fromUser) {
-    // Remove <Socket, ObjectOutputStream> entries for users that are not logged in
-    HashMap<Socket, ObjectOutputStream> usersCopy = (HashMap<Socket, ObjectOutputStream>)users.clone();
-    usersCopy.entrySet().removeIf(ent -> {
-        Socket userSocket = ent.getKey();
-        for(User u : onlineUsers) {
-          if(u.getIP().equals(userSocket.getInetAddress().getHostAddress())) return false;
-        }
+    public long getLastHeard() {
+      return this.lastHeard;
+    }
+
+    /**
+     * Returns true once the outbox has given up after a failed write, so the {@link IdleReaper IdleReaper} closes the
+     * connection.
+     */
+    public boolean isBroken() {
+      Outbox o = outbox;
+      return o != null && o.isClosed();
+    }
+
+    public void close() {
+      close(false);
+    }
+
+    /**
+     * Tears the session down exactly once, however it ended: the client quit, its connection failed or it went idle.
+     * The client leaves its room and every registry and timer it was part of, and the socket is closed, after writing
+     * whatever is still queued for it if <i>flush</i> is set.
+     */
+    public void close(boolean flush) {
+      if(!closed.compareAndSet(false, true)) return;
+
+      Platform.runLater(() -> display.appendText(new Date() + ": User @" + ip + " has disconnected\n"));
+
+      sessions.close(session);
+      cancelRosterUpdates();
+      admission.release(ip);
+
+      UserRef u = user;
+      if(u != null) {
+        goOffline(u.getAlias());
+        leaveRoom(u.getAlias() + " has left the session");
+      } else {
+        leaveRoom(null);
+      }
+
+      Outbox o = outbox;
+      if(o != null && flush) {
+        o.closeAfterDrain(this::closeSocket);
+      } else {
+        if(o != null) o.close();
+        closeSocket();
+      }
+    }
+
+    /**
+     * Marks this session as logged in as the result's alias and hands the client a fresh token for logging back in.
+     */
+    private AuthResult authenticate(AuthResult r) {
+      authenticated = r.getAlias();
+      token = tokens.issue(r.getAlias());
+      r.setToken(token);
+
+      return r;
+    }
+
+    /**
+     * Drops an alias from the online users once none of its devices is still logged in.
+     */
+    private void goOffline(String alias) {
+      onlineUsers.computeIfPresent(alias, (a, u) -> sessions.isOnline(a) ? u : null);
+    }
+
+    private void closeSocket() {
+      try {
+        s.close();
+      } catch(IOException ex) {
+        System.out.println(ex);
+      }
+    }
+
+    private void cancelRosterUpdates() {
+      ScheduledFuture<?> f = rosterUpdates;
+      if(f != null) f.cancel(false);
+    }
+
+    /**
+     * Charges an object read from this client against its limits and answers with a throttle signal if it is over
+     * them: a {@link ChatAck ChatAck} for a chat line, so the client can send it again later, and a <i>throttled</i>
+     * message for anything else. Logging in and out and quitting are never throttled. An object larger than the
+     * session's byte burst could never get through, so it is refused outright instead.
+     */
+    private boolean isThrottled(Object o, long bytes) {
+      long wait;
+
+      if(o instanceof ChatEntry && admission.isOversize(limits, bytes)) {
+        send(ChatAck.rejected((ChatEntry)o, "message too large"));
         return true;
-    });
+      }
 
-    // Write the message to each user
-    try {
-      for(Map.Entry<Socket, ObjectOutputStream> u : usersCopy.entrySet()) {
-        Socket user = u.getKey();
-        ObjectOutputStream to = u.getValue();
-        if(!fromUser.equals(user)) {
-          to.writeObject(message);
-          to.flush();
+      if(o instanceof ChatEntry) {
+        wait = admission.checkMessage(limits, bytes);
+        if(wait > 0) send(ChatAck.throttled((ChatEntry)o, wait));
+        return wait > 0;
+      }
+
+      if(o instanceof HashMap) {
+        Set<?> keys = ((HashMap)o).keySet();
+        if(keys.contains("quit") || keys.contains("login_success") || keys.contains("logout_success")) return false;
+      }
+
+      if(admission.isOversize(limits, bytes)) {
+        log("User @" + ip + " sent " + bytes + " bytes at once, more than it may ever send");
+        return true;
+      }
+
+      wait = admission.checkBytes(limits, bytes);
+      if(wait > 0) {
+        HashMap<String, Long> throttled = new HashMap<>();
+        throttled.put("throttled", wait);
+        send(throttled);
+      }
+
+      return wait > 0;
+    }
+
+    /**
+     * Queues an object for this client in its {@link Outbox Outbox}. A reset after writing makes the stream forget the
+     * objects it has written, so the table it keeps of them doesn't grow with every roster sent to a long-lived client.
+     */
+    public boolean send(TrafficClass traffic, Object message, boolean reset) {
+      return outbox.offer(traffic, message, reset);
+    }
+
+    public boolean send(Object message, boolean reset) {
+      return send(TrafficClass.CHAT, message, reset);
+    }
+
+    public boolean send(Object message) {
+      return send(TrafficClass.CHAT, message, false);
+    }
+
+    /**
+     * Moves this client into a room, unless it isn't logged in or isn't allowed into the room, in which case it stays
+     * where it is and false is returned.
+     */
+    private boolean joinRoom(int id, String notice) {
+      if(room != null && room.getId() == id) return true;
+      if(!canAccess(id)) return false;
+
+      leaveRoom(null);
+
+      RoomActor<HandleClient> r = room(id);
+      room = r;
+      counters.visit(id);
+      ranking.visit(id);
+
+      r.tell(() -> {
+        r.addMember(this);
+        if(notice != null) broadcast(r, TrafficClass.PRESENCE, notice, this);
+      });
+
+      return true;
+    }
+
+    private void leaveRoom(String notice) {
+      RoomActor<HandleClient> r = room;
+      if(r == null) return;
+
+      room = null;
+
+      r.tell(() -> {
+        r.removeMember(this);
+        if(notice != null) broadcast(r, TrafficClass.PRESENCE, notice, this);
+      });
+    }
+
+    /**
+     * Returns true if this client is logged in and may read and post in the room.
+     */
+    private boolean canAccess(int id) {
+      String alias = authenticated;
+      return alias != null && directory.canAccess(id, alias);
+    }
+
+    private void sendRoster(RoomActor<HandleClient> r) {
+      HashMap<String, List<UserRef>> whosHere = new HashMap<>();
+
+      List<UserRef> usersInRoom = new ArrayList<>();
+      for(HandleClient member : r.getMembers()) {
+        if(member.user == null) continue;
+
+        UserRef latest = onlineUsers.get(member.user.getAlias());
+        usersInRoom.add(latest != null ? latest : member.user);
+      }
+      whosHere.put("online_users", usersInRoom);
+
+      send(TrafficClass.ROSTER, whosHere, true);
+    }
+
+    /**
+     * Sends a reconnecting client the messages of a room it hasn't seen, straight from the room's recent messages when
+     * it remembers them all. The client has usually rejoined its room by now, so messages posted since can reach it
+     * live before this page does and be in the page as well; the client drops the ones it already got.
+     */
+    private void sendMissed(RoomActor<HandleClient> r, long lastSeen) {
+      List<ChatEntry> missed = r.getRecentAfter(lastSeen);
+      if(missed == null || missed.size() > HISTORY_MAX_PAGE) {
+        HashMap<String, Object> req = new HashMap<>();
+        req.put("history_request", HistoryPage.cursor(r.getId(), lastSeen));
+        req.put("direction", "after");
+        req.put("limit", HISTORY_MAX_PAGE);
+
+        sendHistory(req);
+        return;
+      }
+
+      String cursor = missed.isEmpty() ? HistoryPage.cursor(r.getId(), lastSeen) : HistoryPage.cursor(r.getId(), missed.get(missed.size() - 1).getSequence());
+      ArrayList<ChatEntry> page = new ArrayList<>();
+      for(ChatEntry e : missed) page.add(e.forDelivery());
+
+      send(new HistoryPage(r.getId(), page, cursor, cursor, false, true, true, true, false), true);
+    }
+
+    /**
+     * Answers a history request with a page of messages read from the chat log. A request without a cursor gets the
+     * newest page of its room; otherwise the page lies strictly before (or, with the <i>after</i> direction, strictly
+     * after) the message the cursor points to. The page is written in chunks of {@value #HISTORY_CHUNK} entries. A
+     * client that isn't logged in, or isn't allowed into the room, gets an empty page.
+     */
+    private void sendHistory(Map<?, ?> req) {
+      String cursor = (String)req.get("history_request");
+      boolean after = "after".equals(req.get("direction"));
+      int limit = req.get("limit") instanceof Integer ? Math.min((Integer)req.get("limit"), HISTORY_MAX_PAGE) : HISTORY_CHUNK;
+
+      long[] c = HistoryPage.parseCursor(cursor);
+      int room = c != null ? (int)c[0] : (req.get("room") instanceof Integer ? (Integer)req.get("room") : 1);
+      long seq = c != null ? c[1] : (after ? 0 : Long.MAX_VALUE);
+
+      List<ChatEntry> page = new ArrayList<>();
+      boolean more = false;
+      if(chatLog != null && limit > 0 && canAccess(room)) {
+        page = after ? chatLog.read(room, seq + 1, limit) : chatLog.readBefore(room, seq, limit);
+
+        if(!page.isEmpty()) {
+          more = after ? page.get(page.size() - 1).getSequence() < chatLog.lastSequence(room) : page.get(0).getSequence() > chatLog.firstSequence(room);
+        }
+      }
+
+      String beforeCursor = page.isEmpty() ? cursor : HistoryPage.cursor(room, page.get(0).getSequence());
+      String afterCursor = page.isEmpty() ? cursor : HistoryPage.cursor(room, page.get(page.size() - 1).getSequence());
+
+      int i = 0;
+      do {
+        ArrayList<ChatEntry> chunk = new ArrayList<>(page.subList(i, Math.min(page.size(), i + HISTORY_CHUNK)));
+        for(ChatEntry e : chunk) e.setSourceIP(null);
+
+        send(new HistoryPage(room, chunk, beforeCursor, afterCursor, c == null, after, i == 0, i + HISTORY_CHUNK >= page.size(), more), true);
+
+        i += HISTORY_CHUNK;
+      } while(i < page.size());
+    }
+
+    /**
+     * Answers a search with the newest messages containing every word of the query, read back from the chat log. The
+     * request may name a <i>room</i>, a <i>from</i> and <i>to</i> time in milliseconds and a <i>limit</i>. Only a
+     * logged in client gets results, and only from public rooms and the private rooms it hosts or is invited to.
+     */
+    private void sendSearchResults(Map<?, ?> req) {
+      String query = (String)req.get("search_request");
+      int room = req.get("room") instanceof Integer ? (Integer)req.get("room") : 0;
+      long from = req.get("from") instanceof Long ? (Long)req.get("from") : Long.MIN_VALUE;
+      long to = req.get("to") instanceof Long ? (Long)req.get("to") : Long.MAX_VALUE;
+      int limit = req.get("limit") instanceof Integer ? Math.max(0, Math.min((Integer)req.get("limit"), SEARCH_MAX)) : SEARCH_DEFAULT;
+      String alias = authenticated;
+
+      ArrayList<ChatEntry> found = new ArrayList<>();
+      if(searchIndex != null && alias != null) {
+        // Read once up front, so checking a hit never waits on the database while the index is locked
+        Set<Integer> privateRooms = directory.privateRoomsOf(alias);
+        IntPredicate allowed = r -> (room == 0 || r == room) && (directory.isPublic(r) || privateRooms.contains(r));
+
+        for(long[] hit : searchIndex.search(query, allowed, from, to, limit)) {
+          List<ChatEntry> entry = chatLog.read((int)hit[0], hit[1], 1);
+          if(entry.isEmpty() || entry.get(0).getSequence() != hit[1]) continue;
+
+          entry.get(0).setSourceIP(null);
+          found.add(entry.get(0));
         }
       }
-    } catch(IOException ex) { System.out.println(ex); }
+
+      HashMap<String, Object> results = new HashMap<>();
+      results.put("search", query);
+      results.put("search_results", found);
+      send(results, true);
+    }
   }
 }
@@ -0,0 +1,181 @@
+/**
+ * <p>
+ * The Outbox class queues what the {@link MessgrServer MessgrServer} sends to one client, so the threads producing
+ * messages never block on the client's socket. Each {@link TrafficClass TrafficClass} has its own queue and the outbox
+ * always writes from the highest class that has something queued, which keeps chat lines moving while typing
+ * indicators and rosters wait. Messages of the same class are written in the order they were queued.
+ * </p>
+ *
+ * <p>
+ * Like a {@link RoomActor RoomActor}, an outbox with queued messages is drained by one worker of a shared pool at a
+ * time, writing a bounded batch and flushing once before handing the worker back.
+ * </p>
+ *
+ * <p>
+ * The writes block, so a client that stops reading would keep a worker waiting on its socket and let its queues grow
+ * without end. An outbox therefore holds at most <i>maxDepth</i> messages: the message that would go over that closes
+ * it, drops everything queued and tells the owner once, so it can close the connection and free the worker. A client
+ * that reads too slowly to fill up its outbox can still hold a worker for as long as a write takes, so the owner also
+ * watches {@link #getWritingMillis() getWritingMillis} and closes connections whose writes have gone on for too long.
+ * </p>
+ *
+ * @author Adrian Sanchez
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+class Outbox {
+  private static final int BATCH_SIZE = 64;
+  private static final TrafficClass[] CLASSES = TrafficClass.values();
+
+  interface Writer {
+    void write(Object message, boolean reset) throws IOException;
+    void flush() throws IOException;
+  }
+
+  private final Executor pool;
+  private final Writer writer;
+  private final LongAdder queuedTotal;
+  private final int maxDepth;
+  private final Runnable onOverflow;
+  private final List<ConcurrentLinkedQueue<Object[]>> queues = new ArrayList<>(CLASSES.length);
+  private final AtomicInteger depth = new AtomicInteger();
+  private final AtomicBoolean overflowed = new AtomicBoolean();
+  private final AtomicBoolean scheduled = new AtomicBoolean();
+  private final AtomicReference<Runnable> onDrained = new AtomicReference<>();
+  private volatile boolean closed, abandoned;
+  private volatile long writingSince;
+
+  /**
+   * @param queuedTotal counts the messages queued across every outbox, for the load controller to watch
+   * @param onOverflow runs once, on the thread that queued one message too many
+   */
+  public Outbox(Executor pool, Writer writer, LongAdder queuedTotal, int maxDepth, Runnable onOverflow) {
+    this.pool = pool;
+    this.writer = writer;
+    this.queuedTotal = queuedTotal;
+    this.maxDepth = maxDepth;
+    this.onOverflow = onOverflow;
+
+    for(int i = 0; i < CLASSES.length; i++) queues.add(new ConcurrentLinkedQueue<>());
+  }
+
+  /**
+   * Queues a message for writing. Returns false if the outbox has been closed because the client is gone or has
+   * fallen too far behind.
+   */
+  public boolean offer(TrafficClass traffic, Object message, boolean reset) {
+    if(closed) return false;
+
+    queues.get(traffic.ordinal()).add(new Object[] { message, reset });
+    int queued = depth.incrementAndGet();
+    queuedTotal.increment();
+
+    if(queued > maxDepth) {
+      close();
+      if(overflowed.compareAndSet(false, true)) onOverflow.run();
+      return false;
+    }
+
+    // Raced with close, so don't leave the message counted in a queue nobody drains
+    if(abandoned) {
+      close();
+      return false;
+    }
+
+    schedule();
+    return true;
+  }
+
+  public int getDepth() {
+    return depth.get();
+  }
+
+  public boolean isClosed() {
+    return this.closed;
+  }
+
+  /**
+   * Returns how long the batch being written has been going on, or 0 if no worker is writing for this outbox.
+   */
+  public long getWritingMillis() {
+    long since = writingSince;
+    return since == 0 ? 0 : Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - since));
+  }
+
+  /**
+   * Stops accepting messages, writes whatever is still queued and then runs <i>then</i>.
+   */
+  public void closeAfterDrain(Runnable then) {
+    onDrained.set(then);
+    closed = true;
+    schedule();
+  }
+
+  /**
+   * Stops accepting messages and drops whatever is still queued.
+   */
+  public void close() {
+    closed = true;
+    abandoned = true;
+
+    for(ConcurrentLinkedQueue<Object[]> q : queues) {
+      while(q.poll() != null) {
+        depth.decrementAndGet();
+        queuedTotal.decrement();
+      }
+    }
+  }
+
+  private Object[] poll() {
+    for(ConcurrentLinkedQueue<Object[]> q : queues) {
+      Object[] m = q.poll();
+      if(m != null) {
+        depth.decrementAndGet();
+        queuedTotal.decrement();
+        return m;
+      }
+    }
+
+    return null;
+  }
+
+  private void schedule() {
+    if(scheduled.compareAndSet(false, true)) pool.execute(this::drain);
+  }
+
+  private void drain() {
+    writingSince = System.nanoTime();
+
+    try {
+      int written = 0;
+      for(Object[] m; written < BATCH_SIZE && !abandoned && (m = poll()) != null; written++) {
+        writer.write(m[0], (Boolean)m[1]);
+      }
+
+      if(written > 0) writer.flush();
+    } catch(IOException ex) {
+      System.out.println(ex);
+      close();
+    } finally {
+      writingSince = 0;
+      scheduled.set(false);
+
+      if(!abandoned && depth.get() > 0) {
+        schedule();
+      } else if(closed) {
+        Runnable then = onDrained.getAndSet(null);
+        if(then != null) then.run();
+      }
+    }
+  }
+}
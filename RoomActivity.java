@@ -0,0 +1,174 @@
+/**
+ * <p>
+ * The RoomActivity class keeps sliding-window statistics for one room of the {@link MessgrServer MessgrServer}: how many
+ * messages it gets per second, how many people are posting and typing in it, and how long fanning its messages out
+ * takes. The window is {@link #BUCKETS BUCKETS} buckets of {@link #BUCKET_MILLIS BUCKET_MILLIS} each, kept in a ring in
+ * a single {@link AtomicLongArray AtomicLongArray}, so a room's statistics take a fixed amount of memory however busy
+ * it is and recording never takes a lock or allocates.
+ * </p>
+ *
+ * <p>
+ * Each bucket holds the time it covers, a message count, a bitmap of the senders and one of the typists, and
+ * power-of-two buckets of fan-out latency. The first thread to record into a bucket that has come round again claims it
+ * with a compare-and-set and clears it. A record that races with the clearing can be lost, which is accepted for
+ * statistics that only need to be about right. People are counted from the bitmaps by linear counting, which is close
+ * for the few hundred distinct people a bitmap of {@link #BITS BITS} bits can tell apart.
+ * </p>
+ *
+ * @author Adrian Sanchez
+ */
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+class RoomActivity {
+  public static final int BUCKETS = 12;
+  public static final long BUCKET_MILLIS = 5000;
+  public static final int BITS = 256;
+
+  private static final int WORDS = BITS / 64;
+  private static final int LATENCIES = 24;
+
+  // Offsets within a bucket
+  private static final int TIME = 0, MESSAGES = 1, SENDERS = 2, TYPISTS = SENDERS + WORDS, LATENCY = TYPISTS + WORDS;
+  private static final int STRIDE = LATENCY + LATENCIES;
+
+  private final int room;
+  private final AtomicLongArray ring = new AtomicLongArray(BUCKETS * STRIDE);
+
+  public RoomActivity(int room) {
+    this.room = room;
+  }
+
+  public int getRoom() {
+    return this.room;
+  }
+
+  public void recordMessage(String alias) {
+    int b = bucket(System.currentTimeMillis());
+    ring.incrementAndGet(b + MESSAGES);
+    setBit(b + SENDERS, spread(alias));
+  }
+
+  public void recordTyping(String alias) {
+    setBit(bucket(System.currentTimeMillis()) + TYPISTS, spread(alias));
+  }
+
+  public void recordFanOut(long nanos) {
+    long micros = Math.max(0, nanos / 1000);
+    int slot = Math.min(LATENCIES - 1, 64 - Long.numberOfLeadingZeros(micros));
+
+    ring.incrementAndGet(bucket(System.currentTimeMillis()) + LATENCY + slot);
+  }
+
+  public double getMessagesPerSecond() {
+    long now = System.currentTimeMillis(), messages = 0;
+    for(int i = 0; i < BUCKETS; i++) {
+      if(inWindow(i * STRIDE, now)) messages += ring.get(i * STRIDE + MESSAGES);
+    }
+
+    return messages * 1000.0 / (BUCKETS * BUCKET_MILLIS);
+  }
+
+  public int getActiveSenders() {
+    return distinct(SENDERS);
+  }
+
+  public int getTypingUsers() {
+    return distinct(TYPISTS);
+  }
+
+  /**
+   * Returns the upper bound, in microseconds, of the power-of-two bucket holding the 99th percentile fan-out time.
+   */
+  public long getFanOutP99() {
+    long now = System.currentTimeMillis(), total = 0;
+    long[] counts = new long[LATENCIES];
+
+    for(int i = 0; i < BUCKETS; i++) {
+      int o = i * STRIDE;
+      if(!inWindow(o, now)) continue;
+
+      for(int s = 0; s < LATENCIES; s++) {
+        counts[s] += ring.get(o + LATENCY + s);
+        total += ring.get(o + LATENCY + s);
+      }
+    }
+
+    long rank = (long)Math.ceil(total * 0.99), seen = 0;
+    for(int s = 0; s < LATENCIES && total > 0; s++) {
+      seen += counts[s];
+      if(seen >= rank) return (1L << s) - 1;
+    }
+
+    return 0;
+  }
+
+  public String toString() {
+    return "room " + room + ": " + String.format("%.1f", getMessagesPerSecond()) + " msg/s, " + getActiveSenders() + " senders, "
+      + getTypingUsers() + " typing, fan-out p99 " + getFanOutP99() + "us";
+  }
+
+  // Returns the offset of the bucket for now, claiming and clearing it first if it still holds an older time
+  private int bucket(long now) {
+    long time = now / BUCKET_MILLIS;
+    int o = (int)(time % BUCKETS) * STRIDE;
+
+    long held = ring.get(o + TIME);
+    if(held < time && ring.compareAndSet(o + TIME, held, time)) {
+      for(int i = 1; i < STRIDE; i++) ring.set(o + i, 0);
+    }
+
+    return o;
+  }
+
+  private boolean inWindow(int o, long now) {
+    return now / BUCKET_MILLIS - ring.get(o + TIME) < BUCKETS;
+  }
+
+  private int distinct(int field) {
+    long now = System.currentTimeMillis();
+    long[] union = new long[WORDS];
+
+    for(int i = 0; i < BUCKETS; i++) {
+      int o = i * STRIDE;
+      if(!inWindow(o, now)) continue;
+
+      for(int w = 0; w < WORDS; w++) union[w] |= ring.get(o + field + w);
+    }
+
+    int zeros = BITS;
+    for(long w : union) zeros -= Long.bitCount(w);
+
+    // Linear counting; a full bitmap only says there are at least as many people as it can tell apart
+    return zeros == 0 ? BITS : (int)Math.round(-BITS * Math.log((double)zeros / BITS));
+  }
+
+  private void setBit(int offset, long h) {
+    long bit = bit(h);
+    int i = offset + word(h);
+
+    long w = ring.get(i);
+    while((w & bit) == 0 && !ring.compareAndSet(i, w, w | bit)) w = ring.get(i);
+  }
+
+  private static int word(long h) {
+    return (int)(h >>> 6) & (WORDS - 1);
+  }
+
+  private static long bit(long h) {
+    return 1L << (h & 63);
+  }
+
+  private static long spread(String alias) {
+    long h = alias == null ? 0 : alias.hashCode();
+
+    // Finalizer from MurmurHash3 to spread the bits across the bitmap
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+
+    return h;
+  }
+}
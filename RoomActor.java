@@ -0,0 +1,127 @@
+/**
+ * <p>
+ * The RoomActor class owns the state of a single chatroom on the {@link MessgrServer MessgrServer}: who is in it and the
+ * most recent messages. Work for a room is submitted with {@link #tell(Runnable) tell} and queued in the
+ * room's mailbox, which is drained by one worker of a shared pool at a time. Everything a room does therefore happens in
+ * the order it was told and never concurrently, so its state needs no locks, while different rooms are processed in
+ * parallel on as many cores as the pool has.
+ * </p>
+ *
+ * <p>
+ * The state accessors below must only be called from tasks running inside the actor. The exceptions are
+ * {@link #getMemberCount() getMemberCount}, {@link #getMemberSnapshot() getMemberSnapshot} and
+ * {@link #getActivity() getActivity}, which are safe to use from anywhere.
+ * </p>
+ *
+ * @author Adrian Sanchez
+ */
+
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+class RoomActor<M> {
+  private static final int BATCH_SIZE = 64;
+  private static final int RECENT_LIMIT = 200;
+
+  private final int id;
+  private final Executor pool;
+  private final ConcurrentLinkedQueue<Runnable> mailbox = new ConcurrentLinkedQueue<>();
+  private final AtomicBoolean scheduled = new AtomicBoolean();
+
+  private final LinkedHashSet<M> members = new LinkedHashSet<>();
+  private final ArrayDeque<ChatEntry> recent = new ArrayDeque<>();
+  private volatile List<M> memberSnapshot = Collections.emptyList();
+  private final RoomActivity activity;
+
+  public RoomActor(int id, Executor pool) {
+    this.id = id;
+    this.pool = pool;
+    this.activity = new RoomActivity(id);
+  }
+
+  public int getId() {
+    return this.id;
+  }
+
+  public void tell(Runnable task) {
+    mailbox.add(task);
+    schedule();
+  }
+
+  public int getMemberCount() {
+    return this.memberSnapshot.size();
+  }
+
+  /**
+   * Returns an immutable copy of the members taken at the last change of membership, so the room's members can be
+   * handed to another thread, such as the fan-out stage, without copying them for every message.
+   */
+  public List<M> getMemberSnapshot() {
+    return this.memberSnapshot;
+  }
+
+  public RoomActivity getActivity() {
+    return this.activity;
+  }
+
+  public Set<M> getMembers() {
+    return Collections.unmodifiableSet(members);
+  }
+
+  public boolean addMember(M m) {
+    boolean added = members.add(m);
+    if(added) memberSnapshot = Collections.unmodifiableList(new ArrayList<>(members));
+    return added;
+  }
+
+  public boolean removeMember(M m) {
+    boolean removed = members.remove(m);
+    if(removed) memberSnapshot = Collections.unmodifiableList(new ArrayList<>(members));
+    return removed;
+  }
+
+  public void remember(ChatEntry e) {
+    recent.addLast(e);
+    if(recent.size() > RECENT_LIMIT) recent.removeFirst();
+  }
+
+  /**
+   * Returns the remembered messages with a sequence number greater than <i>seq</i>, or null if some of them are older
+   * than what the room still remembers and have to be read from the chat log instead.
+   */
+  public List<ChatEntry> getRecentAfter(long seq) {
+    if(recent.isEmpty() || recent.peekFirst().getSequence() > seq + 1) return null;
+
+    List<ChatEntry> after = new ArrayList<>();
+    for(ChatEntry e : recent) {
+      if(e.getSequence() > seq) after.add(e);
+    }
+
+    return after;
+  }
+
+  private void schedule() {
+    if(scheduled.compareAndSet(false, true)) pool.execute(this::drain);
+  }
+
+  // Runs a bounded batch so one busy room can't keep a worker from the others, then hands the worker back
+  private void drain() {
+    try {
+      for(int i = 0; i < BATCH_SIZE; i++) {
+        Runnable task = mailbox.poll();
+        if(task == null) break;
+
+        try {
+          task.run();
+        } catch(RuntimeException ex) {
+          System.out.println(ex);
+        }
+      }
+    } finally {
+      scheduled.set(false);
+      if(!mailbox.isEmpty()) schedule();
+    }
+  }
+}
@@ -0,0 +1,98 @@
+/**
+ * <p>
+ * The RoomCounters class counts visits per room on the {@link MessgrServer MessgrServer} in memory and writes them to
+ * the ChatRooms table in one batched statement every <i>counters.flush_seconds</i>. A popular room used
+ * to take an UPDATE for every visit, which made its row a lock every client queued on; now each visit is an increment
+ * of a {@link LongAdder LongAdder}, which spreads concurrent increments over separate cells, and the row is written
+ * once per interval with the sum.
+ * </p>
+ *
+ * <p>
+ * The counts are not durable until they are flushed. A crash loses at most the visits of the last interval, and a
+ * flush that fails puts its counts back to be written with the next one. The server flushes once more when it stops.
+ * The totals are only used to rank rooms, so that loss is accepted in exchange for taking the database off the path of
+ * every visit. Flushes run on the executor they are started on, which should be one kept for database work so a slow
+ * write doesn't hold up anything else.
+ * </p>
+ *
+ * @author Adrian Sanchez
+ */
+
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+class RoomCounters {
+  private final Connection connection;
+  private final long flushSeconds;
+  private final ConcurrentHashMap<Integer, LongAdder> rooms = new ConcurrentHashMap<>();
+  private ScheduledFuture<?> flushes;
+
+  public RoomCounters(Connection connection, Properties prop) {
+    this.connection = connection;
+    this.flushSeconds = Long.parseLong(prop.getProperty("counters.flush_seconds", "10"));
+  }
+
+  public void start(ScheduledExecutorService executor) {
+    flushes = executor.scheduleAtFixedRate(this::flush, flushSeconds, flushSeconds, TimeUnit.SECONDS);
+  }
+
+  public void stop() {
+    if(flushes != null) flushes.cancel(false);
+    flush();
+  }
+
+  public void visit(int room) {
+    visits(room).increment();
+  }
+
+  /**
+   * Writes the counts gathered since the last flush as one batch of increments and starts counting from zero.
+   */
+  public synchronized void flush() {
+    if(connection == null) return;
+
+    Map<Integer, Long> deltas = new HashMap<>();
+    for(Map.Entry<Integer, LongAdder> e : rooms.entrySet()) {
+      long visits = e.getValue().sumThenReset();
+      if(visits != 0) deltas.put(e.getKey(), visits);
+    }
+
+    if(deltas.isEmpty()) return;
+
+    try(PreparedStatement stmt = connection.prepareStatement("UPDATE ChatRooms SET visits = visits + ? WHERE chatroom_id = ?")) {
+      for(Map.Entry<Integer, Long> d : deltas.entrySet()) {
+        stmt.setLong(1, d.getValue());
+        stmt.setInt(2, d.getKey());
+        stmt.addBatch();
+      }
+
+      stmt.executeBatch();
+    } catch(SQLException ex) {
+      System.out.println(ex);
+
+      // Keep what wasn't written so the next flush tries again; rows a failed batch did update are not counted twice
+      int[] done = ex instanceof BatchUpdateException ? ((BatchUpdateException)ex).getUpdateCounts() : new int[0];
+
+      int i = 0;
+      for(Map.Entry<Integer, Long> d : deltas.entrySet()) {
+        if(i < done.length && done[i++] != Statement.EXECUTE_FAILED) continue;
+
+        visits(d.getKey()).add(d.getValue());
+      }
+    }
+  }
+
+  private LongAdder visits(int room) {
+    LongAdder c = rooms.get(room);
+    return c != null ? c : rooms.computeIfAbsent(room, r -> new LongAdder());
+  }
+}
@@ -0,0 +1,145 @@
+/**
+ * <p>
+ * The RoomDirectory class is what the {@link MessgrServer MessgrServer} knows about the rooms in the ChatRooms table:
+ * which ids exist, who hosts them, their category and whether they are private. It decides whether a user may read or
+ * join a room, so history, search and joining only ever reach rooms that exist and that the user is allowed into. A
+ * public room is open to everyone who is logged in, and a private one to its host and the people invited to it.
+ * </p>
+ *
+ * <p>
+ * Every room is read when the server starts. Rooms are created by the clients, so an id the directory doesn't know yet
+ * is looked up once and kept if it exists; unknown ids are not remembered, so made-up ids can't grow the directory.
+ * Invitations to a private room are checked against ChatRoomMembers and remembered once found. Without a database
+ * every room is treated as public.
+ * </p>
+ *
+ * @author Adrian Sanchez
+ */
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+class RoomDirectory {
+  private final Connection connection;
+  private final ConcurrentHashMap<Integer, Room> rooms = new ConcurrentHashMap<>();
+
+  public RoomDirectory(Connection connection) {
+    this.connection = connection;
+  }
+
+  public void load() {
+    if(connection == null) return;
+
+    try(Statement stmt = connection.createStatement()) {
+      ResultSet rslt = stmt.executeQuery("SELECT chatroom_id, host, type, private FROM ChatRooms");
+      while(rslt.next()) {
+        Room r = fromRow(rslt);
+        rooms.putIfAbsent(r.id, r);
+      }
+    } catch(SQLException ex) { System.out.println(ex); }
+  }
+
+  /**
+   * Returns the room with this id, or null if there is no such room.
+   */
+  public Room get(int id) {
+    Room r = rooms.get(id);
+    if(r != null) return r;
+
+    if(connection == null) return id > 0 ? new Room(id, null, null, false) : null;
+
+    // Looked up outside the map so a slow query never holds up other rooms
+    try(PreparedStatement stmt = connection.prepareStatement("SELECT chatroom_id, host, type, private FROM ChatRooms WHERE chatroom_id = ?")) {
+      stmt.setInt(1, id);
+
+      ResultSet rslt = stmt.executeQuery();
+      if(!rslt.next()) return null;
+
+      Room found = fromRow(rslt);
+      r = rooms.putIfAbsent(id, found);
+      return r != null ? r : found;
+    } catch(SQLException ex) {
+      System.out.println(ex);
+      return null;
+    }
+  }
+
+  /**
+   * Returns true if the room exists and <i>alias</i> may read and post in it.
+   */
+  public boolean canAccess(int id, String alias) {
+    if(alias == null) return false;
+
+    Room r = get(id);
+    if(r == null) return false;
+    if(!r.isPrivate || alias.equals(r.host) || r.invited.contains(alias)) return true;
+    if(connection == null) return false;
+
+    try(PreparedStatement stmt = connection.prepareStatement("SELECT 1 FROM ChatRoomMembers WHERE chatroom_id = ? AND alias = ?")) {
+      stmt.setInt(1, id);
+      stmt.setString(2, alias);
+
+      if(!stmt.executeQuery().next()) return false;
+      r.invited.add(alias);
+      return true;
+    } catch(SQLException ex) {
+      System.out.println(ex);
+      return false;
+    }
+  }
+
+  /**
+   * Returns true if the room is known to be public, without going to the database; rooms that haven't been seen yet
+   * count as not public. Without a database every room is public.
+   */
+  public boolean isPublic(int id) {
+    Room r = rooms.get(id);
+    return connection == null || (r != null && !r.isPrivate);
+  }
+
+  /**
+   * Returns the ids of the private rooms <i>alias</i> hosts or has been invited to.
+   */
+  public Set<Integer> privateRoomsOf(String alias) {
+    Set<Integer> ids = new HashSet<>();
+    if(connection == null || alias == null) return ids;
+
+    try(PreparedStatement stmt = connection.prepareStatement(
+        "SELECT chatroom_id FROM ChatRooms WHERE private = 1 AND host = ? UNION SELECT chatroom_id FROM ChatRoomMembers WHERE alias = ?")) {
+      stmt.setString(1, alias);
+      stmt.setString(2, alias);
+
+      ResultSet rslt = stmt.executeQuery();
+      while(rslt.next()) ids.add(rslt.getInt(1));
+    } catch(SQLException ex) { System.out.println(ex); }
+
+    return ids;
+  }
+
+  private static Room fromRow(ResultSet rslt) throws SQLException {
+    boolean isPrivate = rslt.getInt("private") != 0;
+    return new Room(rslt.getInt("chatroom_id"), rslt.getString("host"), isPrivate ? null : rslt.getString("type"), isPrivate);
+  }
+
+  static class Room {
+    final int id;
+    final String host;
+    // Null for private rooms, which belong to no category
+    final String category;
+    final boolean isPrivate;
+    private final Set<String> invited = ConcurrentHashMap.newKeySet();
+
+    Room(int id, String host, String category, boolean isPrivate) {
+      this.id = id;
+      this.host = host;
+      this.category = category;
+      this.isPrivate = isPrivate;
+    }
+  }
+}
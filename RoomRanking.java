@@ -0,0 +1,168 @@
+/**
+ * <p>
+ * The RoomRanking class keeps the trending public rooms of the {@link MessgrServer MessgrServer} in memory, overall and
+ * per category, so "Top Rooms" is answered without touching the database. A room's score is the sum of its messages,
+ * the distinct people chatting in it and its visits, each weighted and decayed exponentially with a half-life of
+ * <i>ranking.half_life_minutes</i>, so a burst of activity lifts a room quickly and fades once it quiets down.
+ * </p>
+ *
+ * <p>
+ * Scores are kept relative to the moment the ranking started: an event at time <i>t</i> adds its weight times
+ * <i>e<sup>&lambda;t</sup></i> instead of every score being decayed as time passes. Decaying all scores by the same
+ * factor never changes their order, so this ranks rooms exactly like decaying them would, but a score only ever changes
+ * when its own room has an event and only ever grows. The growing factor is kept in log space so it can't overflow.
+ * </p>
+ *
+ * <p>
+ * Because scores only grow, each top list can be kept incrementally: a room already on it is moved up, and a room not
+ * on it takes the place of the lowest one once it scores higher. A room pushed off a list can't be owed a place later,
+ * since the lowest score on the list only rises. Each event therefore costs O(log K) for a list of K rooms, and reading
+ * a list costs O(K), however many rooms there are.
+ * </p>
+ *
+ * <p>
+ * A room's category comes from the {@link RoomDirectory RoomDirectory}, which the server has already consulted before
+ * letting anyone visit or post, so ranking never waits on the database. Ids the directory doesn't know are ignored.
+ * </p>
+ *
+ * @author Adrian Sanchez
+ */
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+class RoomRanking {
+  /**
+   * The category of the list that ranks every public room.
+   */
+  public static final String ALL = "";
+
+  private final RoomDirectory directory;
+  private final int size;
+  private final double lambda, logMessage, logChatter, logVisit;
+  private final long chatterWindow;
+  private final long startedAt = System.currentTimeMillis();
+
+  private final ConcurrentHashMap<Integer, Room> rooms = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, TopList> lists = new ConcurrentHashMap<>();
+
+  public RoomRanking(RoomDirectory directory, Properties prop) {
+    long halfLife = TimeUnit.MINUTES.toMillis(Long.parseLong(prop.getProperty("ranking.half_life_minutes", "60")));
+
+    this.directory = directory;
+    this.size = Integer.parseInt(prop.getProperty("ranking.top_k", "20"));
+    this.lambda = Math.log(2) / halfLife;
+    this.chatterWindow = halfLife;
+    this.logMessage = Math.log(Double.parseDouble(prop.getProperty("ranking.message_weight", "1")));
+    this.logChatter = Math.log(Double.parseDouble(prop.getProperty("ranking.chatter_weight", "5")));
+    this.logVisit = Math.log(Double.parseDouble(prop.getProperty("ranking.visit_weight", "2")));
+  }
+
+  public void visit(int room) {
+    Room r = room(room);
+    if(r == null || r.category == null) return;
+
+    synchronized(r) {
+      rank(r, r.add(logVisit, System.currentTimeMillis()));
+    }
+  }
+
+  public void message(int room, String alias) {
+    Room r = room(room);
+    if(r == null || r.category == null) return;
+
+    long now = System.currentTimeMillis();
+    synchronized(r) {
+      double score = r.add(logMessage, now);
+      if(r.newChatter(alias, now)) score = r.add(logChatter, now);
+
+      rank(r, score);
+    }
+  }
+
+  /**
+   * Returns the ids of the highest ranked rooms of a category, or of all public rooms for {@link #ALL ALL}, best first.
+   */
+  public List<Integer> top(String category) {
+    TopList list = lists.get(category != null ? category : ALL);
+    return list != null ? list.ids() : new ArrayList<>();
+  }
+
+  // Called with the room locked, so the lists see a room's scores in the order they grew
+  private void rank(Room r, double score) {
+    lists.computeIfAbsent(ALL, c -> new TopList()).offer(r.id, score);
+    lists.computeIfAbsent(r.category, c -> new TopList()).offer(r.id, score);
+  }
+
+  // Looked up in the directory before touching the map, so nothing slow runs under its lock
+  private Room room(int id) {
+    Room r = rooms.get(id);
+    if(r != null) return r;
+
+    RoomDirectory.Room info = directory.get(id);
+    return info != null ? rooms.computeIfAbsent(id, i -> new Room(i, info.category)) : null;
+  }
+
+  // log(e^a + e^b) without leaving log space
+  private static double logAdd(double a, double b) {
+    double max = Math.max(a, b), min = Math.min(a, b);
+    return max + Math.log1p(Math.exp(min - max));
+  }
+
+  class Room {
+    final int id;
+    final String category;
+    double logScore = Double.NEGATIVE_INFINITY;
+    HashMap<String, Long> chatters;
+
+    Room(int id, String category) {
+      this.id = id;
+      this.category = category;
+    }
+
+    double add(double logWeight, long now) {
+      logScore = logAdd(logScore, logWeight + lambda * (now - startedAt));
+      return logScore;
+    }
+
+    // Someone counts as a new chatter when they haven't posted in the room for a whole half-life
+    boolean newChatter(String alias, long now) {
+      if(chatters == null) chatters = new HashMap<>();
+      if(chatters.size() > 256) chatters.values().removeIf(t -> now - t > chatterWindow);
+
+      Long last = chatters.put(alias, now);
+      return last == null || now - last > chatterWindow;
+    }
+  }
+
+  class TopList {
+    private final TreeSet<double[]> byScore = new TreeSet<>((a, b) -> a[0] != b[0] ? Double.compare(a[0], b[0]) : Double.compare(a[1], b[1]));
+    private final HashMap<Integer, double[]> entries = new HashMap<>();
+
+    synchronized void offer(int id, double score) {
+      double[] entry = entries.get(id);
+
+      if(entry != null) {
+        byScore.remove(entry);
+      } else if(entries.size() >= size) {
+        double[] lowest = byScore.first();
+        if(score <= lowest[0]) return;
+
+        byScore.pollFirst();
+        entries.remove((int)lowest[1]);
+      }
+
+      entry = new double[] { score, id };
+      byScore.add(entry);
+      entries.put(id, entry);
+    }
+
+    synchronized List<Integer> ids() {
+      List<Integer> ids = new ArrayList<>(entries.size());
+      for(double[] entry : byScore.descendingSet()) ids.add((int)entry[1]);
+
+      return ids;
+    }
+  }
+}
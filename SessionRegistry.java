@@ -0,0 +1,108 @@
+/**
+ * <p>
+ * The SessionRegistry class keeps track of every client connected to the {@link MessgrServer MessgrServer}. Each
+ * connection is given a session, and the registry indexes sessions by id and by the alias logged in on them, so the
+ * server can reach every connection when it shuts down and tell whether an alias is still logged in anywhere. An alias
+ * may be logged in on several devices at once, each with a session of its own. Which room a session is in is kept by
+ * the room's {@link RoomActor RoomActor}, not here.
+ * </p>
+ *
+ * <p>
+ * The alias index is a concurrent map of concurrent sets, and a session is only added to or removed from a set inside
+ * a compute on its key, so a set is never dropped from the index while another thread is adding to it.
+ * </p>
+ *
+ * @author Adrian Sanchez
+ */
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+class SessionRegistry<T> {
+  private final AtomicLong nextId = new AtomicLong();
+  private final ConcurrentHashMap<Long, Session<T>> byId = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, Set<Session<T>>> byAlias = new ConcurrentHashMap<>();
+
+  /**
+   * Opens a session for a new connection. It has no alias until the client logs in.
+   */
+  public Session<T> open(T transport) {
+    Session<T> s = new Session<>(nextId.incrementAndGet(), transport);
+    byId.put(s.id, s);
+
+    return s;
+  }
+
+  public Collection<Session<T>> all() {
+    return Collections.unmodifiableCollection(byId.values());
+  }
+
+  public boolean isOnline(String alias) {
+    return byAlias.containsKey(alias);
+  }
+
+  public void login(Session<T> s, String alias) {
+    synchronized(s) {
+      if(s.closed) return;
+
+      if(s.alias != null) unindex(byAlias, s.alias, s);
+      s.alias = alias;
+      if(alias != null) index(byAlias, alias, s);
+    }
+  }
+
+  public void logout(Session<T> s) {
+    login(s, null);
+  }
+
+  /**
+   * Removes a session from every index. Closing a session twice is harmless.
+   */
+  public void close(Session<T> s) {
+    synchronized(s) {
+      if(s.closed) return;
+
+      if(s.alias != null) unindex(byAlias, s.alias, s);
+      byId.remove(s.id);
+
+      s.closed = true;
+    }
+  }
+
+  private static <K, V> void index(ConcurrentHashMap<K, Set<V>> map, K key, V value) {
+    map.compute(key, (k, set) -> {
+      if(set == null) set = ConcurrentHashMap.newKeySet();
+      set.add(value);
+      return set;
+    });
+  }
+
+  private static <K, V> void unindex(ConcurrentHashMap<K, Set<V>> map, K key, V value) {
+    map.computeIfPresent(key, (k, set) -> {
+      set.remove(value);
+      return set.isEmpty() ? null : set;
+    });
+  }
+
+  /**
+   * A client connection: its id and the alias logged in on it.
+   */
+  static class Session<T> {
+    private final long id;
+    private final T transport;
+    private volatile String alias;
+    private boolean closed;
+
+    Session(long id, T transport) {
+      this.id = id;
+      this.transport = transport;
+    }
+
+    public T getTransport() {
+      return this.transport;
+    }
+  }
+}
@@ -0,0 +1,186 @@
+/**
+ * <p>
+ * The SessionTokens class issues and checks the signed tokens that let a client log back in without its password.
+ * A token names an alias, when it expires, a random id and the key epoch it was signed in, and carries an HMAC-SHA256
+ * of all of that. Checking one is a single HMAC and a constant-time compare, so a storm of reconnecting clients after
+ * a restart costs next to nothing next to the {@link BCrypt BCrypt} check of a password login.
+ * </p>
+ *
+ * <p>
+ * Signing keys rotate every <i>token.rotate_hours</i>. Each epoch's key is derived from <i>token.secret</i>, so every
+ * server sharing the secret, and the same server after a restart, derives the same keys without storing them. A
+ * token is good for one resume, which is answered with a fresh token, and is revoked then or on logout; revoked ids are
+ * remembered until their tokens would have expired anyway.
+ * </p>
+ *
+ * <p>
+ * Without <i>token.secret</i> in the configuration, the secret is read from the file named by <i>token.secret_file</i>,
+ * which is created with a random secret the first time, so tokens still survive a restart. Servers that share logins
+ * must all be given the same secret, either in the configuration or by copying that file.
+ * </p>
+ *
+ * @author Adrian Sanchez
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+class SessionTokens {
+  private static final String ALGORITHM = "HmacSHA256";
+
+  private final byte[] secret;
+  private final long ttlMillis, rotateMillis;
+  private final SecureRandom random = new SecureRandom();
+  private final ConcurrentHashMap<Long, SecretKeySpec> keys = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<Long, Long> revoked = new ConcurrentHashMap<>();
+  private final ThreadLocal<Mac> macs = ThreadLocal.withInitial(() -> {
+    try {
+      return Mac.getInstance(ALGORITHM);
+    } catch(GeneralSecurityException ex) {
+      throw new IllegalStateException(ex);
+    }
+  });
+
+  public SessionTokens(Properties prop, Consumer<String> log) {
+    ttlMillis = TimeUnit.HOURS.toMillis(Long.parseLong(prop.getProperty("token.ttl_hours", "24")));
+    rotateMillis = TimeUnit.HOURS.toMillis(Long.parseLong(prop.getProperty("token.rotate_hours", "6")));
+
+    String configured = prop.getProperty("token.secret");
+    if(configured != null && !configured.isEmpty()) {
+      secret = Base64.getDecoder().decode(configured);
+    } else {
+      secret = loadSecret(new File(prop.getProperty("token.secret_file", "token.secret")), log);
+    }
+  }
+
+  /**
+   * Issues a token for <i>alias</i> that is valid for <i>token.ttl_hours</i>.
+   */
+  public String issue(String alias) {
+    long now = System.currentTimeMillis();
+    String payload = (now / rotateMillis) + ":" + (now + ttlMillis) + ":" + random.nextLong() + ":" + alias;
+
+    return encode(payload.getBytes(StandardCharsets.UTF_8)) + "." + encode(sign(now / rotateMillis, payload));
+  }
+
+  /**
+   * Returns the alias a token was issued for and revokes the token, or returns null if it is malformed, forged, expired
+   * or already revoked. Both happen in one step, so of several connections presenting the same token at once only one
+   * gets the alias back.
+   */
+  public String consume(String token) {
+    String[] fields = parse(token);
+    if(fields == null) return null;
+
+    long expires = Long.parseLong(fields[1]);
+    if(expires < System.currentTimeMillis() || revoked.putIfAbsent(Long.parseLong(fields[2]), expires) != null) return null;
+
+    return fields[3];
+  }
+
+  /**
+   * Revokes a token so it can't be used again, even though it hasn't expired yet.
+   */
+  public void revoke(String token) {
+    String[] fields = parse(token);
+    if(fields != null) revoked.put(Long.parseLong(fields[2]), Long.parseLong(fields[1]));
+  }
+
+  /**
+   * Forgets revoked tokens that have expired and the keys of epochs no unexpired token can be signed in.
+   */
+  public void prune() {
+    long now = System.currentTimeMillis();
+
+    revoked.values().removeIf(expires -> expires < now);
+    keys.keySet().removeIf(epoch -> (epoch + 1) * rotateMillis + ttlMillis < now);
+  }
+
+  /**
+   * Reads the secret from <i>file</i>, creating the file with a new random secret if there is none yet. A server that
+   * can do neither can't issue tokens that outlive it, so it fails to start instead.
+   */
+  private byte[] loadSecret(File file, Consumer<String> log) {
+    try {
+      if(file.exists()) return Base64.getDecoder().decode(new String(Files.readAllBytes(file.toPath()), StandardCharsets.US_ASCII).trim());
+
+      byte[] created = new byte[32];
+      random.nextBytes(created);
+      Files.write(file.toPath(), Base64.getEncoder().encode(created), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+
+      try {
+        Files.setPosixFilePermissions(file.toPath(), PosixFilePermissions.fromString("rw-------"));
+      } catch(UnsupportedOperationException ex) {
+        // Not a POSIX file system; the file keeps the default permissions
+      }
+
+      log.accept("token.secret is not set; created a new one in " + file + ", which every server sharing logins needs");
+      return created;
+    } catch(IOException ex) {
+      throw new UncheckedIOException("Can't read or create the session token secret in " + file, ex);
+    }
+  }
+
+  // Splits and verifies a token, returning {epoch, expires, id, alias} only if its signature holds
+  private String[] parse(String token) {
+    try {
+      int dot = token.indexOf('.');
+      if(dot < 0) return null;
+
+      String payload = new String(Base64.getUrlDecoder().decode(token.substring(0, dot)), StandardCharsets.UTF_8);
+      byte[] signature = Base64.getUrlDecoder().decode(token.substring(dot + 1));
+
+      String[] fields = payload.split(":", 4);
+      if(fields.length != 4) return null;
+
+      // Only epochs an unexpired token can have been signed in, so forged ones can't fill the key cache
+      long epoch = Long.parseLong(fields[0]), now = System.currentTimeMillis();
+      if(epoch > now / rotateMillis || (epoch + 1) * rotateMillis + ttlMillis < now) return null;
+
+      return MessageDigest.isEqual(signature, sign(epoch, payload)) ? fields : null;
+    } catch(IllegalArgumentException | NullPointerException ex) {
+      return null;
+    }
+  }
+
+  private byte[] sign(long epoch, String payload) {
+    try {
+      Mac mac = macs.get();
+      mac.init(keys.computeIfAbsent(epoch, this::deriveKey));
+
+      return mac.doFinal(payload.getBytes(StandardCharsets.UTF_8));
+    } catch(GeneralSecurityException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  private SecretKeySpec deriveKey(long epoch) {
+    try {
+      Mac mac = Mac.getInstance(ALGORITHM);
+      mac.init(new SecretKeySpec(secret, ALGORITHM));
+
+      return new SecretKeySpec(mac.doFinal(("session-key:" + epoch).getBytes(StandardCharsets.UTF_8)), ALGORITHM);
+    } catch(GeneralSecurityException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  private static String encode(byte[] b) {
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(b);
+  }
+}
@@ -0,0 +1,62 @@
+/**
+ * <p>
+ * The TokenBucket class limits how fast something may happen: it refills at a steady rate and holds at most a burst
+ * worth of tokens. Instead of counting tokens it keeps the single time at which the bucket will next be full, and
+ * taking tokens pushes that time forward with one compare-and-set, so checking a limit takes no locks and no
+ * allocation however many threads share the bucket.
+ * </p>
+ *
+ * @author Adrian Sanchez
+ */
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+class TokenBucket {
+  private final long nanosPerToken, burstNanos;
+  private final AtomicLong fullAt = new AtomicLong(System.nanoTime());
+
+  /**
+   * @param perSecond tokens added every second
+   * @param burst the most tokens that can be taken at once after the bucket has been idle
+   */
+  public TokenBucket(double perSecond, long burst) {
+    this.nanosPerToken = Math.max(1, (long)(TimeUnit.SECONDS.toNanos(1) / perSecond));
+    this.burstNanos = nanosPerToken * Math.max(1, burst);
+  }
+
+  /**
+   * Takes <i>tokens</i> from the bucket if it holds that many. Returns 0 if they were taken, otherwise how many
+   * nanoseconds to wait before they would be available; nothing is taken in that case.
+   */
+  public long tryAcquire(long tokens) {
+    long cost = tokens * nanosPerToken;
+
+    while(true) {
+      long now = System.nanoTime();
+      long prev = fullAt.get();
+      long next = Math.max(prev, now) + cost;
+
+      // The bucket may never run more than a burst ahead of the present
+      long over = next - now - burstNanos;
+      if(over > 0) return over;
+
+      if(fullAt.compareAndSet(prev, next)) return 0;
+    }
+  }
+
+  /**
+   * Puts back tokens taken by {@link #tryAcquire(long) tryAcquire}, for a caller that took them but then couldn't use
+   * them.
+   */
+  public void refund(long tokens) {
+    fullAt.addAndGet(-tokens * nanosPerToken);
+  }
+
+  /**
+   * Returns true if <i>tokens</i> is more than the bucket can ever hold, so taking them would never succeed.
+   */
+  public boolean exceedsBurst(long tokens) {
+    return tokens * nanosPerToken > burstNanos;
+  }
+}
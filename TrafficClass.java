@@ -0,0 +1,13 @@
+/**
+ * <p>
+ * The TrafficClass enum ranks what the {@link MessgrServer MessgrServer} sends to a client. A connection's
+ * {@link Outbox Outbox} always writes the highest class it has queued first, and the {@link LoadController LoadController}
+ * sheds the lowest classes first when the server is overloaded. Chat lines, acknowledgements and history are never shed.
+ * </p>
+ *
+ * @author Adrian Sanchez
+ */
+
+enum TrafficClass {
+  CHAT, PRESENCE, ROSTER, TYPING
+}
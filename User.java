@@ -11,9 +11,13 @@
  * </p>
  *
  * <p>
- * The user class updates a database record every time a setter is called which makes
+ * The user class writes its changes back to the database on its own, which
  * allows the user class to autonomously act as a conduit for user data without letting
- * the client worry about database modifications.
+ * the client worry about database modifications. Setters only mark their field as changed;
+ * the changes are written as a single UPDATE when {@link #flush() flush} is called, or shortly
+ * after the first change by a background flusher, so editing several fields or flipping the
+ * status back and forth costs one statement instead of one per call. Changes an UPDATE fails to
+ * write are kept and tried again later, unless the field has been changed again in the meantime.
  * </p>
  *
  *
@@ -23,19 +27,54 @@ import java.sql.*;
 import java.util.Properties;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 class User implements Serializable {
   public static final long serialVersionUID = 382738901789L;
 
+  private static final long FLUSH_DELAY = 500;
+  private static final long RETRY_DELAY = 5000;
+  private static final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread t = new Thread(r, "user-flusher");
+    t.setDaemon(true);
+    return t;
+  });
+
   private int last_chatroom;
   private String first_name, last_name, alias, dob, gender, status, ip;
 
   private transient Connection connection;
+  private transient LinkedHashMap<String, String> dirty;
+  private transient boolean flushScheduled;
 
   public User(String alias, String first_name, String last_name) {
     setupDB();
 
     this.alias = alias;
+    load(first_name, last_name);
+  }
+
+  public User(String alias, String first_name) {
+    this(alias, first_name, "");
+  }
+
+  public User(String alias) {
+    this(alias, "", "");
+  }
+
+  /**
+   * Creates a user that reads and writes through <i>connection</i> instead of opening a connection of its own.
+   */
+  User(String alias, Connection connection) {
+    this.alias = alias;
+    this.connection = connection;
+    load("", "");
+  }
+
+  private void load(String first_name, String last_name) {
+    if(connection == null) return;
 
     try {
       PreparedStatement stmt = connection.prepareStatement("SELECT * FROM Users WHERE alias = ?");
@@ -54,23 +93,11 @@ class User implements Serializable {
     } catch (SQLException ex) { System.out.println(ex); }
   }
 
-  public User(String alias, String first_name) {
-    this(alias, first_name, "");
-  }
-
-  public User(String alias) {
-    this(alias, "", "");
-  }
-
+  /**
+   * Remembers the room the user is in. Visits are counted by the server when it is joined.
+   */
   public void setLatestRoom(int i) {
     this.last_chatroom = i;
-
-    try {
-      PreparedStatement stmt = connection.prepareStatement("UPDATE ChatRooms SET visits = visits + 1 WHERE chatroom_id = ?");
-      stmt.setInt(1, i);
-
-      stmt.executeUpdate();
-    } catch(SQLException ex) { System.out.println(ex); }
   }
 
 
@@ -89,7 +116,7 @@ class User implements Serializable {
   public void setFirstName(String f) {
     this.first_name = f;
 
-    dbUpdate("first_name", f);
+    markDirty("first_name", f);
   }
 
   public String getFirstName() {
@@ -99,7 +126,7 @@ class User implements Serializable {
   public void setLastName(String l) {
     this.last_name = l;
 
-    dbUpdate("last_name", l);
+    markDirty("last_name", l);
   }
 
   public String getLastName() {
@@ -109,7 +136,7 @@ class User implements Serializable {
   public void setDob(String dob) {
     this.dob = dob;
 
-    dbUpdate("dob", dob);
+    markDirty("dob", dob);
   }
 
   public String getDob() {
@@ -119,7 +146,7 @@ class User implements Serializable {
   public void setGender(String s) {
     this.gender = s;
 
-    dbUpdate("gender", s);
+    markDirty("gender", s);
   }
 
   public String getGender() {
@@ -130,7 +157,7 @@ class User implements Serializable {
     if(Arrays.asList("ONLINE", "OFFLINE", "BUSY", "AWAY").contains(s.toUpperCase())) {
       this.status = s;
 
-      dbUpdate("status", s.toUpperCase());
+      markDirty("status", s.toUpperCase());
     }
   }
 
@@ -141,7 +168,7 @@ class User implements Serializable {
   public void setIP(String s) {
     this.ip = s;
 
-    dbUpdate("ip", s.toUpperCase());
+    markDirty("ip", s.toUpperCase());
   }
 
   public String getIP() {
@@ -190,14 +217,58 @@ class User implements Serializable {
     return hash;
   }
 
-  private void dbUpdate(String field, String value) {
+  /**
+   * Writes every field changed since the last flush in one UPDATE. A field changed several times is written once,
+   * with its latest value. If the UPDATE fails, the changes are put back and another flush is scheduled.
+   */
+  public void flush() {
+    LinkedHashMap<String, String> changes;
+    synchronized(this) {
+      changes = dirty;
+      dirty = null;
+      flushScheduled = false;
+    }
+
+    if(changes == null || changes.isEmpty()) return;
+    if(connection == null) setupDB();
+
     try {
-      PreparedStatement stmt = connection.prepareStatement("UPDATE Users SET "+field+" = ? WHERE alias = ?");
-      stmt.setString(1, value);
-      stmt.setString(2, this.alias);
+      if(connection == null) throw new SQLException("No connection to the database");
+
+      PreparedStatement stmt = connection.prepareStatement("UPDATE Users SET " + String.join(" = ?, ", changes.keySet()) + " = ? WHERE alias = ?");
+
+      int i = 1;
+      for(String value : changes.values()) stmt.setString(i++, value);
+      stmt.setString(i, this.alias);
 
       stmt.executeUpdate();
-    } catch(SQLException ex) { System.out.println(ex); }
+    } catch(SQLException ex) {
+      System.out.println(ex);
+      restore(changes);
+    }
+  }
+
+  // Puts back changes that couldn't be written; a field set again since the flush keeps its newer value
+  private synchronized void restore(LinkedHashMap<String, String> changes) {
+    if(dirty != null) {
+      for(Map.Entry<String, String> c : dirty.entrySet()) changes.put(c.getKey(), c.getValue());
+    }
+    dirty = changes;
+
+    if(!flushScheduled) {
+      flushScheduled = true;
+      flusher.schedule(this::flush, RETRY_DELAY, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private synchronized void markDirty(String field, String value) {
+    if(dirty == null) dirty = new LinkedHashMap<>();
+    dirty.put(field, value);
+
+    if(!flushScheduled) {
+      flushScheduled = true;
+      flusher.schedule(this::flush, FLUSH_DELAY, TimeUnit.MILLISECONDS);
+    }
   }
 
   private void setupDB() {
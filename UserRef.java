@@ -0,0 +1,117 @@
+/**
+ * <p>
+ * The UserRef class is the small, immutable stand-in for a {@link User User} that the client and server pass around in
+ * rosters, typing notices and presence updates. It carries only what those need, the alias and the status, where a
+ * User loads its whole profile from the database when it is made, holds a connection and is written to the wire field
+ * by field. The full profile is loaded with {@link #loadProfile() loadProfile} when it is actually shown.
+ * </p>
+ *
+ * <p>
+ * References are canonical: every alias passed to {@link #of(String, UserStatus) of} is registered once per process and
+ * given a numeric id, and each alias keeps one reference per status, so it returns the same object for the same alias
+ * and status instead of allocating. Only this process's own calls register aliases, and those come from the Users
+ * table, so the registry is bounded by the number of users. A reference read from a stream is swapped for the local
+ * one if its alias is registered, and otherwise kept as an unregistered copy with an id of 0, so aliases made up by a
+ * peer never grow the registry.
+ * </p>
+ *
+ * @author Adrian Sanchez
+ */
+
+import java.io.InvalidObjectException;
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+final class UserRef implements Serializable {
+  public static final long serialVersionUID = 4417730583162L;
+
+  private static final ConcurrentHashMap<String, UserRef[]> registry = new ConcurrentHashMap<>();
+  private static final AtomicInteger nextId = new AtomicInteger();
+
+  private final String alias;
+  private final UserStatus status;
+  private transient int id, hash;
+
+  private UserRef(String alias, UserStatus status, int id) {
+    this.alias = alias;
+    this.status = status;
+    this.id = id;
+    this.hash = 31 * alias.hashCode() + status.ordinal();
+  }
+
+  public static UserRef of(String alias, UserStatus status) {
+    UserRef[] refs = registry.computeIfAbsent(alias, a -> {
+      int id = nextId.incrementAndGet();
+
+      UserRef[] byStatus = new UserRef[UserStatus.values().length];
+      for(UserStatus s : UserStatus.values()) byStatus[s.ordinal()] = new UserRef(a, s, id);
+
+      return byStatus;
+    });
+
+    return refs[status.ordinal()];
+  }
+
+  public static UserRef of(User u) {
+    return of(u.getAlias(), UserStatus.parse(u.getStatus()));
+  }
+
+  public UserRef withStatus(UserStatus s) {
+    return of(this.alias, s);
+  }
+
+  /**
+   * Returns the process-local id of this alias, or 0 for a reference read from a stream whose alias isn't registered.
+   * Ids are not stable across processes and are never sent.
+   */
+  public int getId() {
+    return this.id;
+  }
+
+  public String getAlias() {
+    return this.alias;
+  }
+
+  public UserStatus getStatus() {
+    return this.status;
+  }
+
+  public boolean isOnline() {
+    return this.status != UserStatus.OFFLINE;
+  }
+
+  /**
+   * Loads the user's full profile from the database.
+   */
+  public User loadProfile() {
+    return new User(this.alias);
+  }
+
+  public String toString() {
+    return this.alias + ": " + this.status + "\n";
+  }
+
+  public boolean equals(Object o) {
+    if(this == o) return true;
+    if(!(o instanceof UserRef)) return false;
+
+    UserRef r = (UserRef)o;
+    return this.status == r.status && this.alias.equals(r.alias);
+  }
+
+  public int hashCode() {
+    return this.hash;
+  }
+
+  // Hand back the canonical reference rather than the copy the stream made, without registering unknown aliases
+  private Object readResolve() throws ObjectStreamException {
+    if(this.alias == null) throw new InvalidObjectException("A user reference needs an alias");
+
+    UserStatus s = this.status != null ? this.status : UserStatus.OFFLINE;
+    UserRef[] refs = registry.get(this.alias);
+
+    return refs != null ? refs[s.ordinal()] : new UserRef(this.alias, s, 0);
+  }
+}
@@ -0,0 +1,23 @@
+/**
+ * <p>
+ * The UserStatus enum lists the statuses a user can set. Statuses are stored in the database as the constant's name,
+ * and anything that isn't one of them, including a missing status, reads as offline.
+ * </p>
+ *
+ * @author Adrian Sanchez
+ */
+
+enum UserStatus {
+  ONLINE, OFFLINE, BUSY, AWAY;
+
+  public static UserStatus parse(String s) {
+    if(s == null) return OFFLINE;
+
+    switch(s.toUpperCase()) {
+      case "ONLINE": return ONLINE;
+      case "BUSY": return BUSY;
+      case "AWAY": return AWAY;
+      default: return OFFLINE;
+    }
+  }
+}
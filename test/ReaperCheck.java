@@ -0,0 +1,192 @@
+/**
+ * <p>
+ * Checks the {@link IdleReaper IdleReaper} against real sockets on the loopback interface. Clients that connect and
+ * then go silent, as a peer behind a half-open connection would, are closed by the reaper while clients that keep
+ * sending heartbeats stay connected. A soak then opens and abandons connections in rounds, <i>20000</i> of them unless
+ * a count is given, and checks that every round ends with no sessions left and no more threads than the first one.
+ * Run with <i>javac -d out -sourcepath . test/ReaperCheck.java && java -cp out ReaperCheck [connections]</i>; it exits
+ * with an error on the first failed check.
+ * </p>
+ *
+ * @author Adrian Sanchez
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+class ReaperCheck {
+  private static final long IDLE_TIMEOUT = 300;
+  private static final int ROUND = 500;
+
+  private static final SessionRegistry<Peer> sessions = new SessionRegistry<>();
+
+  public static void main(String[] args) throws Exception {
+    int connections = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+
+    ServerSocket server = new ServerSocket(0, ROUND, InetAddress.getLoopbackAddress());
+    Thread acceptor = new Thread(() -> accept(server), "acceptor");
+    acceptor.setDaemon(true);
+    acceptor.start();
+
+    ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+    IdleReaper reaper = new IdleReaper(sessions, IDLE_TIMEOUT);
+    reaper.start(timer, 50, TimeUnit.MILLISECONDS);
+
+    try {
+      idleAndAlive(server.getLocalPort());
+      soak(server.getLocalPort(), connections, reaper);
+    } finally {
+      reaper.stop();
+      timer.shutdown();
+      server.close();
+    }
+
+    System.out.println("ReaperCheck passed");
+  }
+
+  // Silent clients are closed by the server, heartbeating ones are left alone
+  private static void idleAndAlive(int port) throws Exception {
+    List<Socket> silent = new ArrayList<>(), alive = new ArrayList<>();
+    for(int i = 0; i < 20; i++) silent.add(connect(port));
+    for(int i = 0; i < 5; i++) alive.add(connect(port));
+
+    awaitSessions(25);
+
+    long until = System.currentTimeMillis() + 4 * IDLE_TIMEOUT;
+    while(System.currentTimeMillis() < until) {
+      for(Socket s : alive) s.getOutputStream().write(1);
+      Thread.sleep(IDLE_TIMEOUT / 4);
+    }
+
+    for(Socket s : silent) check(s.getInputStream().read() == -1, "a silent client wasn't disconnected");
+    check(sessions.all().size() == 5, sessions.all().size() + " sessions left instead of the 5 heartbeating ones");
+
+    for(Socket s : silent) s.close();
+    for(Socket s : alive) s.close();
+    awaitSessions(0);
+  }
+
+  // Connections that are opened and abandoned over and over leave nothing behind
+  private static void soak(int port, int connections, IdleReaper reaper) throws Exception {
+    int baseline = -1;
+    long reapedBefore = reaper.getReaped();
+
+    for(int done = 0; done < connections; done += ROUND) {
+      List<Socket> round = new ArrayList<>(ROUND);
+      for(int i = 0; i < ROUND; i++) round.add(connect(port));
+
+      for(Socket s : round) {
+        check(s.getInputStream().read() == -1, "an abandoned client wasn't disconnected");
+        s.close();
+      }
+      awaitSessions(0);
+      awaitThreads(baseline);
+
+      int threads = Thread.activeCount();
+      if(baseline < 0) baseline = threads;
+
+      if((done / ROUND) % 10 == 0) {
+        Runtime rt = Runtime.getRuntime();
+        System.gc();
+        System.out.println(String.format("soak: %d connections, %d threads, %d KB heap", done + ROUND, threads, (rt.totalMemory() - rt.freeMemory()) / 1024));
+      }
+    }
+
+    long reaped = reaper.getReaped() - reapedBefore;
+    check(reaped >= connections, "the reaper closed " + reaped + " of " + connections + " connections");
+  }
+
+  private static void accept(ServerSocket server) {
+    while(!server.isClosed()) {
+      try {
+        Peer p = new Peer(server.accept());
+        Thread t = new Thread(p, "peer");
+        t.setDaemon(true);
+        t.start();
+      } catch(IOException ex) {
+        if(!server.isClosed()) System.out.println(ex);
+      }
+    }
+  }
+
+  private static Socket connect(int port) throws IOException {
+    Socket s = new Socket(InetAddress.getLoopbackAddress(), port);
+    s.setSoTimeout((int)(20 * IDLE_TIMEOUT));
+    return s;
+  }
+
+  private static void awaitSessions(int n) throws InterruptedException {
+    long until = System.currentTimeMillis() + 20 * IDLE_TIMEOUT;
+    while(sessions.all().size() != n && System.currentTimeMillis() < until) Thread.sleep(10);
+
+    check(sessions.all().size() == n, sessions.all().size() + " sessions open instead of " + n);
+  }
+
+  // Reader threads end a moment after their sockets are closed
+  private static void awaitThreads(int baseline) throws InterruptedException {
+    if(baseline < 0) return;
+
+    long until = System.currentTimeMillis() + 20 * IDLE_TIMEOUT;
+    while(Thread.activeCount() > baseline && System.currentTimeMillis() < until) Thread.sleep(10);
+
+    check(Thread.activeCount() <= baseline, Thread.activeCount() + " threads alive, up from " + baseline);
+  }
+
+  private static void check(boolean ok, String failure) {
+    if(!ok) throw new AssertionError(failure);
+  }
+
+  /**
+   * The server end of a connection, reading heartbeat bytes on its own thread like a client thread of the server does.
+   */
+  static class Peer implements Runnable, IdleReaper.Peer {
+    private final Socket s;
+    private final SessionRegistry.Session<Peer> session;
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private volatile long lastHeard = System.currentTimeMillis();
+
+    Peer(Socket s) {
+      this.s = s;
+      this.session = sessions.open(this);
+    }
+
+    @Override
+    public void run() {
+      try(InputStream in = s.getInputStream()) {
+        while(in.read() != -1) lastHeard = System.currentTimeMillis();
+      } catch(IOException ex) {
+        // Closed by the reaper
+      } finally {
+        close();
+      }
+    }
+
+    public long getLastHeard() {
+      return this.lastHeard;
+    }
+
+    public boolean isBroken() {
+      return false;
+    }
+
+    public void close() {
+      if(!closed.compareAndSet(false, true)) return;
+
+      sessions.close(session);
+      try {
+        s.close();
+      } catch(IOException ex) {
+        System.out.println(ex);
+      }
+    }
+  }
+}
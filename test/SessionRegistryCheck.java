@@ -0,0 +1,108 @@
+/**
+ * <p>
+ * Checks the {@link SessionRegistry SessionRegistry} under contention: 64 threads open sessions and log them in and out
+ * of a handful of shared aliases as fast as they can, so the same alias sets are added to and emptied from many
+ * threads at once. Afterwards every alias that still has a session must be online and every other one offline, and
+ * closing the remaining sessions from all threads at once must leave the registry empty. Run with
+ * <i>javac -d out -sourcepath . test/SessionRegistryCheck.java && java -cp out SessionRegistryCheck</i>; it exits with
+ * an error on the first failed check.
+ * </p>
+ *
+ * @author Adrian Sanchez
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+
+class SessionRegistryCheck {
+  private static final int THREADS = 64;
+  private static final int ALIASES = 8;
+  private static final int ROUNDS = 20000;
+
+  public static void main(String[] args) throws Exception {
+    SessionRegistry<Integer> sessions = new SessionRegistry<>();
+    List<List<SessionRegistry.Session<Integer>>> kept = new ArrayList<>();
+    for(int t = 0; t < THREADS; t++) kept.add(new ArrayList<>());
+
+    long started = System.nanoTime();
+    run(t -> {
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+
+      for(int i = 0; i < ROUNDS; i++) {
+        SessionRegistry.Session<Integer> s = sessions.open(t);
+        sessions.login(s, alias(random.nextInt(ALIASES)));
+        sessions.login(s, alias(random.nextInt(ALIASES)));
+
+        switch(random.nextInt(3)) {
+          case 0: sessions.close(s); break;
+          case 1: sessions.logout(s); sessions.close(s); break;
+          default: sessions.close(s); sessions.close(s); sessions.login(s, alias(0));
+        }
+      }
+
+      // Every thread ends with one session logged in, on the first half of the aliases only
+      SessionRegistry.Session<Integer> s = sessions.open(t);
+      sessions.login(s, alias(t % (ALIASES / 2)));
+      kept.get(t).add(s);
+    });
+    long took = System.nanoTime() - started;
+
+    check(sessions.all().size() == THREADS, sessions.all().size() + " sessions open instead of " + THREADS);
+    for(int a = 0; a < ALIASES; a++) {
+      boolean expected = a < ALIASES / 2;
+      check(sessions.isOnline(alias(a)) == expected, alias(a) + (expected ? " is offline" : " is still online"));
+    }
+
+    run(t -> {
+      for(SessionRegistry.Session<Integer> s : kept.get(t)) sessions.close(s);
+    });
+
+    check(sessions.all().isEmpty(), sessions.all().size() + " sessions left after closing them all");
+    for(int a = 0; a < ALIASES; a++) check(!sessions.isOnline(alias(a)), alias(a) + " is still online with no sessions");
+
+    System.out.println(String.format("%d session lifecycles on %d threads in %d ms", (long)THREADS * ROUNDS, THREADS, took / 1000000));
+    System.out.println("SessionRegistryCheck passed");
+  }
+
+  interface Work {
+    void run(int thread) throws Exception;
+  }
+
+  // Runs the work on every thread at once and rethrows the first failure
+  private static void run(Work work) throws Exception {
+    CountDownLatch start = new CountDownLatch(1);
+    Throwable[] failure = new Throwable[1];
+    List<Thread> threads = new ArrayList<>();
+
+    for(int t = 0; t < THREADS; t++) {
+      int id = t;
+      Thread thread = new Thread(() -> {
+        try {
+          start.await();
+          work.run(id);
+        } catch(Throwable ex) {
+          synchronized(failure) {
+            if(failure[0] == null) failure[0] = ex;
+          }
+        }
+      });
+      threads.add(thread);
+      thread.start();
+    }
+
+    start.countDown();
+    for(Thread thread : threads) thread.join();
+
+    if(failure[0] != null) throw new AssertionError("a worker failed", failure[0]);
+  }
+
+  private static String alias(int n) {
+    return "user" + n;
+  }
+
+  private static void check(boolean ok, String failure) {
+    if(!ok) throw new AssertionError(failure);
+  }
+}
@@ -0,0 +1,145 @@
+/**
+ * <p>
+ * Checks that the {@link User User} coalesces its changes: any number of setter calls between two flushes are written
+ * by a single UPDATE holding each changed field once, with its latest value, and changes an UPDATE failed to write are
+ * kept for the next one. The user is given a stand-in connection that counts the statements it runs, so no database
+ * is needed. Run with <i>javac -d out -sourcepath . test/UserFlushCheck.java && java -cp out UserFlushCheck</i>; it
+ * exits with an error on the first failed check.
+ * </p>
+ *
+ * @author Adrian Sanchez
+ */
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+class UserFlushCheck {
+  private static final List<String> updates = new ArrayList<>();
+  private static final List<Map<Integer, String>> parameters = new ArrayList<>();
+  private static volatile boolean failing;
+
+  public static void main(String[] args) throws Exception {
+    User u = new User("checker", connection());
+
+    coalesced(u);
+    nothingToFlush(u);
+    failedFlush(u);
+    background(u);
+
+    System.out.println("UserFlushCheck passed");
+  }
+
+  // Many setter calls, some on the same field, become one UPDATE
+  private static void coalesced(User u) {
+    int before = updates.size();
+
+    u.setFirstName("Ada");
+    u.setLastName("Lovelace");
+    u.setDob("1815-12-10");
+    u.setGender("F");
+    for(int i = 0; i < 50; i++) u.setStatus(i % 2 == 0 ? "ONLINE" : "AWAY");
+    u.setStatus("BUSY");
+    u.flush();
+
+    check(updates.size() == before + 1, (updates.size() - before) + " statements for one flush");
+
+    String sql = updates.get(updates.size() - 1);
+    check(sql.equals("UPDATE Users SET first_name = ?, last_name = ?, dob = ?, gender = ?, status = ? WHERE alias = ?"), "unexpected statement " + sql);
+
+    Map<Integer, String> p = parameters.get(parameters.size() - 1);
+    check("BUSY".equals(p.get(5)), "status was written as " + p.get(5));
+    check("checker".equals(p.get(6)), "the update was for " + p.get(6));
+  }
+
+  private static void nothingToFlush(User u) {
+    int before = updates.size();
+    u.flush();
+    check(updates.size() == before, "a flush with nothing changed ran a statement");
+  }
+
+  // A failed UPDATE keeps its changes, and a field set again since then is written with the newer value
+  private static void failedFlush(User u) {
+    failing = true;
+    u.setGender("M");
+    u.setStatus("AWAY");
+    u.flush();
+
+    failing = false;
+    u.setStatus("ONLINE");
+
+    int before = updates.size();
+    u.flush();
+    check(updates.size() == before + 1, (updates.size() - before) + " statements for the retried flush");
+
+    String sql = updates.get(updates.size() - 1);
+    check(sql.equals("UPDATE Users SET gender = ?, status = ? WHERE alias = ?"), "the retry wrote " + sql);
+
+    Map<Integer, String> p = parameters.get(parameters.size() - 1);
+    check("M".equals(p.get(1)) && "ONLINE".equals(p.get(2)), "the retry wrote " + p);
+  }
+
+  // Without an explicit flush, the background flusher writes the changes once
+  private static void background(User u) throws InterruptedException {
+    int before = updates.size();
+
+    u.setFirstName("Grace");
+    u.setLastName("Hopper");
+    Thread.sleep(1500);
+
+    check(updates.size() == before + 1, (updates.size() - before) + " statements from the background flusher");
+  }
+
+  // A connection whose statements find no rows and record every UPDATE they execute
+  private static Connection connection() {
+    return (Connection)Proxy.newProxyInstance(UserFlushCheck.class.getClassLoader(), new Class<?>[] { Connection.class }, (proxy, method, args) -> {
+      if(method.getName().equals("prepareStatement")) return statement((String)args[0]);
+      return defaultValue(method.getReturnType());
+    });
+  }
+
+  private static PreparedStatement statement(String sql) {
+    Map<Integer, String> values = new TreeMap<>();
+
+    return (PreparedStatement)Proxy.newProxyInstance(UserFlushCheck.class.getClassLoader(), new Class<?>[] { PreparedStatement.class }, (proxy, method, args) -> {
+      switch(method.getName()) {
+        case "setString":
+          values.put((Integer)args[0], (String)args[1]);
+          return null;
+        case "executeQuery":
+          return emptyResult();
+        case "executeUpdate":
+          if(failing) throw new SQLException("the database is down");
+          synchronized(updates) {
+            updates.add(sql);
+            parameters.add(values);
+          }
+          return 1;
+        default:
+          return defaultValue(method.getReturnType());
+      }
+    });
+  }
+
+  private static ResultSet emptyResult() {
+    return (ResultSet)Proxy.newProxyInstance(UserFlushCheck.class.getClassLoader(), new Class<?>[] { ResultSet.class },
+      (proxy, method, args) -> defaultValue(method.getReturnType()));
+  }
+
+  private static Object defaultValue(Class<?> type) {
+    if(type == boolean.class) return false;
+    if(type == int.class) return 0;
+    if(type == long.class) return 0L;
+    return null;
+  }
+
+  private static void check(boolean ok, String failure) {
+    if(!ok) throw new AssertionError(failure);
+  }
+}